@@ -0,0 +1,81 @@
+package org.vaadin7.console;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Cancellation state of a running command, see
+ * {@link Console.CancellableCommand}. Command is cancelled by the user with
+ * Ctrl-C or by timeout. Long loops check {@link #throwIfCancelled()}, blocking
+ * calls which do not react to interruption can be stopped by a listener added
+ * with {@link #onCancel(Runnable)}, for example cancelling of a SQL statement.
+ *
+ * @author indvdum (gotoindvdum[at]gmail[dot]com)
+ * @since 18.10.2026 23:05:48
+ *
+ */
+public class CancellationToken {
+
+	private volatile boolean isCancelled;
+	private List<Runnable> listeners;
+
+	/**
+	 * @return true if command is cancelled
+	 */
+	public boolean isCancelled() {
+		return isCancelled;
+	}
+
+	/**
+	 * @throws CancellationException
+	 *             if command is cancelled
+	 */
+	public void throwIfCancelled() throws CancellationException {
+		if (isCancelled) {
+			throw new CancellationException("Command cancelled");
+		}
+	}
+
+	/**
+	 * Run the listener when command is cancelled, immediately if it is
+	 * cancelled already. Listener is run by the cancelling thread.
+	 *
+	 * @param listener
+	 *            listener
+	 */
+	public void onCancel(final Runnable listener) {
+		synchronized (this) {
+			if (!isCancelled) {
+				if (listeners == null) {
+					listeners = new ArrayList<Runnable>(1);
+				}
+				listeners.add(listener);
+				return;
+			}
+		}
+		listener.run();
+	}
+
+	/**
+	 * @return false if it was cancelled already
+	 */
+	boolean cancel() {
+		final List<Runnable> cancelListeners;
+		synchronized (this) {
+			if (isCancelled) {
+				return false;
+			}
+			isCancelled = true;
+			cancelListeners = listeners;
+			listeners = null;
+		}
+		if (cancelListeners != null) {
+			for (final Runnable listener : cancelListeners) {
+				listener.run();
+			}
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,98 @@
+package org.vaadin7.console;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors of console commands, see
+ * {@link Console#setCommandExecutor(Executor)}.
+ *
+ * @author indvdum (gotoindvdum[at]gmail[dot]com)
+ * @since 18.10.2026 22:31:05
+ *
+ */
+public final class CommandExecutors {
+
+	/**
+	 * Default max count of threads of bounded executor.
+	 */
+	public static final int DEFAULT_MAX_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors() * 4);
+
+	/**
+	 * Default max count of commands waiting for a thread of bounded executor.
+	 */
+	public static final int DEFAULT_MAX_QUEUED = 1000;
+
+	private static final long KEEP_ALIVE_SECONDS = 60;
+
+	private static Executor defaultExecutor;
+
+	private CommandExecutors() {
+	}
+
+	/**
+	 * Executor shared by consoles: a thread per command executor on Java 21
+	 * and newer, bounded executor otherwise.
+	 *
+	 * @return default executor
+	 */
+	public static synchronized Executor getDefault() {
+		if (defaultExecutor == null) {
+			defaultExecutor = newVirtualThreadExecutor();
+			if (defaultExecutor == null) {
+				defaultExecutor = newBoundedExecutor(DEFAULT_MAX_THREADS, DEFAULT_MAX_QUEUED);
+			}
+		}
+		return defaultExecutor;
+	}
+
+	/**
+	 * Executor which starts a virtual thread for every command. Looked up by
+	 * reflection, so this class is loaded by older runtimes as well.
+	 *
+	 * @return new executor, null if virtual threads are not supported
+	 */
+	public static Executor newVirtualThreadExecutor() {
+		try {
+			final Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (Executor) method.invoke(null);
+		} catch (final Exception e) {
+			// Older runtime
+			return null;
+		}
+	}
+
+	/**
+	 * Executor with limited count of daemon threads, idle threads are stopped.
+	 * Commands are rejected when all threads are busy and the queue is full.
+	 *
+	 * @param maxThreads
+	 *            max count of threads
+	 * @param maxQueued
+	 *            max count of commands waiting for a thread
+	 * @return new executor
+	 */
+	public static Executor newBoundedExecutor(final int maxThreads, final int maxQueued) {
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(maxQueued), new ThreadFactory() {
+
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(final Runnable r) {
+						final Thread thread = new Thread(r, "console-command-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+}
@@ -0,0 +1,138 @@
+package org.vaadin7.console;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Prefix tree of command names. Names are counted, so the same name can be
+ * added by several sources and stays until all of them remove it.
+ *
+ * Lookup by prefix visits only the prefix and the branch of matching names,
+ * names are listed in lexicographic order.
+ *
+ * @author indvdum (gotoindvdum[at]gmail[dot]com)
+ * @since 18.10.2026 21:14:52
+ *
+ */
+class CommandTrie implements Serializable {
+
+	private static final long serialVersionUID = -2381069147355628301L;
+
+	private final Node root = new Node();
+
+	void add(final String name) {
+		final Node existing = find(name);
+		if (existing != null && existing.name != null) {
+			existing.count++;
+			return;
+		}
+		Node node = root;
+		node.size++;
+		for (int i = 0; i < name.length(); i++) {
+			final Character c = Character.valueOf(name.charAt(i));
+			Node child = node.children != null ? node.children.get(c) : null;
+			if (child == null) {
+				if (node.children == null) {
+					node.children = new TreeMap<Character, Node>();
+				}
+				child = new Node();
+				node.children.put(c, child);
+			}
+			child.size++;
+			node = child;
+		}
+		node.name = name;
+		node.count = 1;
+	}
+
+	void addAll(final Collection<String> names) {
+		for (final String name : names) {
+			add(name);
+		}
+	}
+
+	void remove(final String name) {
+		final Node existing = find(name);
+		if (existing == null || existing.name == null) {
+			return;
+		}
+		if (--existing.count > 0) {
+			return;
+		}
+		existing.name = null;
+		Node node = root;
+		node.size--;
+		for (int i = 0; i < name.length(); i++) {
+			final Character c = Character.valueOf(name.charAt(i));
+			final Node child = node.children.get(c);
+			if (--child.size == 0) {
+				// Rest of the branch holds no other names
+				node.children.remove(c);
+				return;
+			}
+			node = child;
+		}
+	}
+
+	void removeAll(final Collection<String> names) {
+		for (final String name : names) {
+			remove(name);
+		}
+	}
+
+	/**
+	 * @return names starting with the prefix in lexicographic order
+	 */
+	List<String> getNames(final String prefix) {
+		final Node node = find(prefix);
+		if (node == null) {
+			return new ArrayList<String>(0);
+		}
+		final List<String> names = new ArrayList<String>(node.size);
+		collect(node, names);
+		return names;
+	}
+
+	private Node find(final String prefix) {
+		Node node = root;
+		for (int i = 0; i < prefix.length() && node != null; i++) {
+			node = node.children != null ? node.children.get(Character.valueOf(prefix.charAt(i))) : null;
+		}
+		return node != null && node.size > 0 ? node : null;
+	}
+
+	private static void collect(final Node node, final List<String> names) {
+		if (node.name != null) {
+			names.add(node.name);
+		}
+		if (node.children != null) {
+			for (final Node child : node.children.values()) {
+				collect(child, names);
+			}
+		}
+	}
+
+	private static class Node implements Serializable {
+
+		private static final long serialVersionUID = 4630716250192841730L;
+
+		TreeMap<Character, Node> children;
+		/**
+		 * Name ending at this node, null if no name ends here.
+		 */
+		String name;
+		/**
+		 * Count of sources of the name.
+		 */
+		int count;
+		/**
+		 * Count of different names in this branch.
+		 */
+		int size;
+
+	}
+
+}
@@ -1,25 +1,44 @@
 package org.vaadin7.console;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.vaadin7.console.ansi.ANSICodeConverter;
+import org.vaadin7.console.ansi.ANSIStreamParser;
 import org.vaadin7.console.ansi.DefaultANSICodeConverter;
 import org.vaadin7.console.client.ConsoleClientRpc;
+import org.vaadin7.console.client.ConsoleFrame;
 import org.vaadin7.console.client.ConsoleServerRpc;
 import org.vaadin7.console.client.ConsoleState;
 
+import com.vaadin.shared.communication.PushMode;
 import com.vaadin.ui.Component;
+import com.vaadin.ui.UI;
+import com.vaadin.ui.UIDetachedException;
 
 /**
  * This is the server-side UI component that provides public API for Console.
@@ -32,41 +51,72 @@ import com.vaadin.ui.Component;
 public class Console extends com.vaadin.ui.AbstractComponent implements Component.Focusable {
 
 	private Console console = this;
+	/**
+	 * Viewport reported by the client, kept out of the state so it is not sent
+	 * back. -1 if not reported since the last change on the server.
+	 */
+	private int clientRows = -1;
+	private int clientCols = -1;
 
 	// To process events from the client, we implement ServerRpc
 	private ConsoleServerRpc rpc = new ConsoleServerRpc() {
 
 		private static final long serialVersionUID = 443398479527027435L;
 
+		@Deprecated
 		@Override
 		public void setHeight(String height) {
 			console.setHeight(height);
 		}
 
+		@Deprecated
 		@Override
 		public void setWidth(String width) {
 			console.setWidth(width);
 		}
 
+		@Deprecated
 		@Override
 		public void setCols(int cols) {
-			config.cols = cols;
+			clientCols = cols;
 		}
 
+		@Deprecated
 		@Override
 		public void setRows(int rows) {
-			config.rows = rows;
+			clientRows = rows;
 		}
 
 		@Override
 		public void input(String input) {
+			// Input is printed after the screen lines on the client
+			screen.commit();
+			if (isPrintPromptOnInput()) {
+				scrollback.newLineIfNotEmpty();
+				scrollback.append(getPs() + input, null);
+				scrollback.newLine();
+			}
 			handleInput(input);
 		}
 
 		@Override
 		public void suggest(String input) {
+			screen.commit();
 			handleSuggest(input);
 		}
+
+		@Override
+		public void cancel() {
+			cancelCommand();
+		}
+
+		@Override
+		public void viewportChanged(int rows, int cols, String width, String height) {
+			clientRows = rows;
+			clientCols = cols;
+			console.setWidth(width);
+			console.setHeight(height);
+		}
 	};
 
 	public Console(final Console.Handler handler) {
@@ -81,14 +131,6 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 		// To receive events from the client, we register ServerRpc
 		registerRpc(rpc);
 
-		// setCols(getCols());
-		// setRows(getRows());
-		setMaxBufferSize(getMaxBufferSize());
-		setWrap(isWrap());
-		setPrintPromptOnInput(isPrintPromptOnInput());
-		setScrollLock(isScrollLock());
-		setGreeting(getGreeting());
-		setPs(getPs());
 		reset();
 	}
 
@@ -98,31 +140,51 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 		return (ConsoleState) super.getState();
 	}
 
+	@Override
+	protected ConsoleState getState(boolean markAsDirty) {
+		return (ConsoleState) super.getState(markAsDirty);
+	}
+
 	private static final long serialVersionUID = 590258219352859644L;
 	private Handler handler;
 	private ANSICodeConverter ansiToCSSconverter;
+	private final ANSIStreamParser ansiParser = new ANSIStreamParser(null);
 	private boolean isConvertANSIToCSS = false;
 	private final HashMap<String, Command> commands = new HashMap<String, Command>();
-	private final Config config = new Config();
+	/**
+	 * Names of commands and of commands of providers.
+	 */
+	private final CommandTrie commandNames = new CommandTrie();
+	/**
+	 * Names of commands of providers as they were indexed.
+	 */
+	private final Map<CommandProvider, Set<String>> providerCommandNames = new HashMap<CommandProvider, Set<String>>();
+	/**
+	 * Commands resolved by name. Valid while
+	 * {@link #resolvedCommandsVersion} equals {@link #commandsVersion}.
+	 */
+	private final HashMap<String, Command> resolvedCommands = new HashMap<String, Command>();
+	private int commandsVersion;
+	private int resolvedCommandsVersion;
+	private final OutputFrame outputFrame = new OutputFrame();
+	private final ConsoleInputParser inputParser = new ConsoleInputParser();
+	private final ConsoleScrollback scrollback = new ConsoleScrollback();
+	private final ConsoleScreen screen = new ConsoleScreen(outputFrame, scrollback);
 
 	private static final String DEFAULT_PS = "}> ";
-	private static final String DEFAULT_GREETING = "Console ready.";
-	private static final int DEFAULT_BUFFER = 0;
-	private static final int DEFAULT_COLS = -1;
-	private static final int DEFAULT_ROWS = -1;
-	private static final boolean DEFAULT_WRAP = true;
-	private static final boolean DEFAULT_PRINT_PROMPT_ON_INPUT = true;
-	private static final boolean DEFAULT_SMART_SCROLL_TO_END = false;
 	private static final int MAX_COLS = 500;
 	private static final int MAX_ROWS = 200;
+	private static final int DEFAULT_OUTPUT_FLUSH_INTERVAL = 0;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
 
 	public boolean isWrap() {
-		return config.wrap;
+		return getState(false).wrap;
 	}
 
 	public void setWrap(final boolean wrap) {
-		config.wrap = wrap;
-		getRpcProxy(ConsoleClientRpc.class).setWrap(wrap);
+		if (wrap != isWrap()) {
+			getState().wrap = wrap;
+		}
 	}
 
 	/**
@@ -130,7 +192,7 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 	 *         false otherwise
 	 */
 	public boolean isPrintPromptOnInput() {
-		return config.isPrintPromptOnInput;
+		return getState(false).printPromptOnInput;
 	}
 
 	/**
@@ -139,8 +201,9 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 	 *            console, nothing happens otherwise
 	 */
 	public void setPrintPromptOnInput(final boolean isPrintPromptOnInput) {
-		config.isPrintPromptOnInput = isPrintPromptOnInput;
-		getRpcProxy(ConsoleClientRpc.class).setPrintPromptOnInput(isPrintPromptOnInput);
+		if (isPrintPromptOnInput != isPrintPromptOnInput()) {
+			getState().printPromptOnInput = isPrintPromptOnInput;
+		}
 	}
 
 	/**
@@ -148,7 +211,7 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 	 *         was "end"
 	 */
 	public boolean isScrollLock() {
-		return config.isScrollLock;
+		return getState(false).scrollLock;
 	}
 
 	/**
@@ -157,8 +220,27 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 	 *            state was "end"
 	 */
 	public void setScrollLock(final boolean isScrollLock) {
-		config.isScrollLock = isScrollLock;
-		getRpcProxy(ConsoleClientRpc.class).setScrollLock(isScrollLock);
+		if (isScrollLock != isScrollLock()) {
+			getState().scrollLock = isScrollLock;
+		}
+	}
+
+	public boolean isVirtualScrolling() {
+		return getState(false).virtualScrolling;
+	}
+
+	/**
+	 * In virtual scrolling mode the client renders only visible lines, so max
+	 * buffer size can be hundreds of thousands of lines. Client buffer is
+	 * cleared when mode is changed.
+	 * 
+	 * @param isVirtualScrolling
+	 *            true to enable virtual scrolling
+	 */
+	public void setVirtualScrolling(final boolean isVirtualScrolling) {
+		if (isVirtualScrolling != isVirtualScrolling()) {
+			getState().virtualScrolling = isVirtualScrolling;
+		}
 	}
 
 	/**
@@ -169,28 +251,116 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 	private Integer fontw;
 	@SuppressWarnings("unused")
 	private Integer fonth;
-	private PrintStream printStream;
+	private transient ConsoleOutputSink outputSink;
+	private int outputFlushInterval = DEFAULT_OUTPUT_FLUSH_INTERVAL;
+	private long lastFlushTime;
+	private boolean isFlushRequested;
+	private transient ConsoleWriter writer;
+	private transient PrintStream printStream;
 	private String lastSuggestInput;
+	private transient Executor commandExecutor;
+	/**
+	 * Command running on the command executor, null if none.
+	 */
+	private transient CommandExecution runningCommand;
+	private transient LinkedList<String[]> queuedCommands;
+	private transient boolean isPromptPending;
+	private transient String pendingPromptInput;
+	private long commandTimeout;
 	private List<CommandProvider> commandProviders;
 
 	/**
-	 * An inner class for holding the configuration data.
+	 * Configuration of the console.
+	 * 
+	 * @deprecated configuration is kept in the shared state, use the getters
+	 *             and setters of {@link Console}. This view delegates to them.
 	 */
+	@Deprecated
 	public static class Config implements Serializable {
 
 		private static final long serialVersionUID = -812601232248504108L;
 
-		int maxBufferSize = DEFAULT_BUFFER;
-		int cols = DEFAULT_COLS;
-		int rows = DEFAULT_ROWS;
-		boolean wrap = DEFAULT_WRAP;
-		boolean isPrintPromptOnInput = DEFAULT_PRINT_PROMPT_ON_INPUT;
-		boolean isScrollLock = DEFAULT_SMART_SCROLL_TO_END;
-		String ps = DEFAULT_PS;
-		String greeting = DEFAULT_GREETING;
+		private final Console console;
+
+		Config(final Console console) {
+			this.console = console;
+		}
+
+		public int getMaxBufferSize() {
+			return console.getMaxBufferSize();
+		}
+
+		public void setMaxBufferSize(final int maxBufferSize) {
+			console.setMaxBufferSize(maxBufferSize);
+		}
+
+		public int getCols() {
+			return console.getCols();
+		}
+
+		public void setCols(final int cols) {
+			console.setCols(cols);
+		}
+
+		public int getRows() {
+			return console.getRows();
+		}
+
+		public void setRows(final int rows) {
+			console.setRows(rows);
+		}
+
+		public boolean isWrap() {
+			return console.isWrap();
+		}
+
+		public void setWrap(final boolean wrap) {
+			console.setWrap(wrap);
+		}
+
+		public boolean isPrintPromptOnInput() {
+			return console.isPrintPromptOnInput();
+		}
+
+		public void setPrintPromptOnInput(final boolean isPrintPromptOnInput) {
+			console.setPrintPromptOnInput(isPrintPromptOnInput);
+		}
+
+		public boolean isScrollLock() {
+			return console.isScrollLock();
+		}
+
+		public void setScrollLock(final boolean isScrollLock) {
+			console.setScrollLock(isScrollLock);
+		}
+
+		public String getPs() {
+			return console.getPs();
+		}
+
+		public void setPs(final String ps) {
+			console.setPs(ps);
+		}
+
+		public String getGreeting() {
+			return console.getGreeting();
+		}
+
+		public void setGreeting(final String greeting) {
+			console.setGreeting(greeting);
+		}
 
 	}
 
+	/**
+	 * @return configuration view of this console
+	 * @deprecated use the getters and setters of {@link Console}
+	 */
+	@Deprecated
+	public Config getConfig() {
+		return new Config(this);
+	}
+
 	/**
 	 * Console Handler interface.
 	 * 
@@ -268,6 +438,32 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 		public String getUsage(Console console, String[] argv);
 	}
 
+	/**
+	 * Command which can be cancelled by the user with Ctrl-C or by timeout.
+	 * 
+	 */
+	public interface CancellableCommand extends Command {
+
+		/**
+		 * Execute a Command with arguments. Called instead of
+		 * {@link Command#execute(Console, String[])}.
+		 * 
+		 * @param console
+		 * @param argv
+		 * @param token
+		 *            cancellation state of this execution
+		 * @return
+		 * @throws Exception
+		 */
+		public Object execute(Console console, String[] argv, CancellationToken token) throws Exception;
+
+		/**
+		 * @return timeout in milliseconds, 0 for timeout of console, negative
+		 *         for no timeout
+		 */
+		public long getTimeout();
+	}
+
 	/**
 	 * Interface for providing Commands to the console. One can register a
 	 * command providers to console instead of individual commands to provide a
@@ -295,25 +491,120 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 
 	}
 
+	/**
+	 * Command provider which commands can change after it was added to a
+	 * console. Console listens to it and resolves commands again after a
+	 * change.
+	 * 
+	 */
+	public interface DynamicCommandProvider extends CommandProvider {
+
+		void addCommandsChangeListener(CommandsChangeListener listener);
+
+		void removeCommandsChangeListener(CommandsChangeListener listener);
+
+	}
+
+	/**
+	 * Listener of changes of commands of {@link DynamicCommandProvider}.
+	 * 
+	 */
+	public interface CommandsChangeListener extends Serializable {
+
+		/**
+		 * Called after available commands of the provider or commands returned
+		 * by it changed.
+		 * 
+		 * @param commandProvider
+		 */
+		void commandsChanged(CommandProvider commandProvider);
+
+	}
+
+	private final CommandsChangeListener commandsChangeListener = new CommandsChangeListener() {
+
+		private static final long serialVersionUID = -6217935904471558230L;
+
+		@Override
+		public void commandsChanged(CommandProvider commandProvider) {
+			commandProviderChanged(commandProvider);
+		}
+	};
+
 	public void addCommandProvider(final CommandProvider commandProvider) {
 		if (commandProviders == null) {
 			commandProviders = new ArrayList<CommandProvider>();
 		}
 		commandProviders.add(commandProvider);
+		if (!providerCommandNames.containsKey(commandProvider) && commandProvider instanceof DynamicCommandProvider) {
+			((DynamicCommandProvider) commandProvider).addCommandsChangeListener(commandsChangeListener);
+		}
+		indexCommandProvider(commandProvider);
+		commandsVersion++;
 	}
 
 	public void removeCommandProvider(final CommandProvider commandProvider) {
 		if (commandProviders == null) {
 			return;
 		}
-		commandProviders.remove(commandProvider);
+		if (commandProviders.remove(commandProvider) && !commandProviders.contains(commandProvider)) {
+			unindexCommandProvider(commandProvider);
+			removeCommandsChangeListener(commandProvider);
+		}
+		commandsVersion++;
 	}
 
 	public void removeAllCommandProviders() {
 		if (commandProviders == null) {
 			return;
 		}
+		for (final CommandProvider cp : new ArrayList<CommandProvider>(providerCommandNames.keySet())) {
+			unindexCommandProvider(cp);
+			removeCommandsChangeListener(cp);
+		}
 		commandProviders.clear();
+		commandsVersion++;
+	}
+
+	/**
+	 * Available commands of providers are read when a provider is added and
+	 * resolved commands are cached. Call this method after commands of a
+	 * provider changed, {@link DynamicCommandProvider} is listened
+	 * automatically.
+	 * 
+	 * @param commandProvider
+	 *            added command provider
+	 */
+	public void commandProviderChanged(final CommandProvider commandProvider) {
+		if (!providerCommandNames.containsKey(commandProvider)) {
+			return;
+		}
+		unindexCommandProvider(commandProvider);
+		indexCommandProvider(commandProvider);
+		commandsVersion++;
+	}
+
+	private void indexCommandProvider(final CommandProvider commandProvider) {
+		if (providerCommandNames.containsKey(commandProvider)) {
+			return;
+		}
+		final Set<String> available = commandProvider.getAvailableCommands(this);
+		final Set<String> names = available != null ? new HashSet<String>(available) : Collections.<String> emptySet();
+		providerCommandNames.put(commandProvider, names);
+		commandNames.addAll(names);
+	}
+
+	private void unindexCommandProvider(final CommandProvider commandProvider) {
+		final Set<String> names = providerCommandNames.remove(commandProvider);
+		if (names != null) {
+			commandNames.removeAll(names);
+		}
+	}
+
+	private void removeCommandsChangeListener(final CommandProvider commandProvider) {
+		if (commandProvider instanceof DynamicCommandProvider) {
+			((DynamicCommandProvider) commandProvider).removeCommandsChangeListener(commandsChangeListener);
+		}
 	}
 
 	/**
@@ -340,6 +631,131 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 		}
 	}
 
+	/**
+	 * Sends all output collected during this round trip as a single frame.
+	 */
+	@Override
+	public void beforeClientResponse(boolean initial) {
+		super.beforeClientResponse(initial);
+		if (initial) {
+			// Client starts with an empty dictionary of class names
+			outputFrame.resetClassNames();
+		}
+		flushOutput();
+	}
+
+	/**
+	 * Send collected output to the client immediately. Output is normally
+	 * flushed automatically before the response is written.
+	 */
+	protected void flushOutput() {
+		isFlushRequested = false;
+		lastFlushTime = System.currentTimeMillis();
+		screen.flush();
+		if (outputFrame.isEmpty()) {
+			return;
+		}
+		final OutputFrame.Encoded frame = outputFrame.encode();
+		outputFrame.clear();
+		getRpcProxy(ConsoleClientRpc.class).frame(frame.ops, frame.text, frame.args, frame.classNames);
+	}
+
+	/**
+	 * Output which is not processed by the screen ends the lines which can be
+	 * changed in place.
+	 * 
+	 * @return frame collecting output of this round trip
+	 */
+	private OutputFrame getOutputFrame() {
+		requestFlush();
+		screen.commit();
+		return outputFrame;
+	}
+
+	/**
+	 * Ensure beforeClientResponse is called for this console, but not more
+	 * often than the output flush interval allows.
+	 */
+	private void requestFlush() {
+		if (isFlushRequested) {
+			return;
+		}
+		isFlushRequested = true;
+		final UI ui = getUI();
+		final long delay = outputFlushInterval - (System.currentTimeMillis() - lastFlushTime);
+		if (delay <= 0 || ui == null) {
+			markAsDirty();
+			return;
+		}
+		ConsoleTimer.EXECUTOR.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					ui.access(new Runnable() {
+
+						@Override
+						public void run() {
+							markAsDirty();
+							if (ui.getPushConfiguration().getPushMode() == PushMode.MANUAL) {
+								ui.push();
+							}
+						}
+					});
+				} catch (final UIDetachedException e) {
+					// Nothing to flush to
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Timer of delayed output flushes and command timeouts shared by all
+	 * consoles.
+	 */
+	private static class ConsoleTimer {
+
+		static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, "console-timer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+	}
+
+	public int getOutputFlushInterval() {
+		return outputFlushInterval;
+	}
+
+	/**
+	 * Limit how often output is sent to the client. Output printed in between
+	 * is sent as a single frame, this applies to push and to polling as well.
+	 * 
+	 * @param outputFlushInterval
+	 *            min interval between output frames in milliseconds, for
+	 *            example 33 for 30 frames per second, 0 to send output with
+	 *            every response
+	 */
+	public void setOutputFlushInterval(final int outputFlushInterval) {
+		this.outputFlushInterval = outputFlushInterval > 0 ? outputFlushInterval : 0;
+	}
+
+	/**
+	 * Client RPC for calls which are not batched. Collected output is sent
+	 * first to keep the order of calls.
+	 * 
+	 * @return client RPC proxy
+	 */
+	private ConsoleClientRpc getClientRpc() {
+		screen.commit();
+		flushOutput();
+		return getRpcProxy(ConsoleClientRpc.class);
+	}
+
 	protected void handleSuggest(final String input) {
 
 		final boolean cancelIfNotASingleMatch = (input != null && !input.equals(lastSuggestInput));
@@ -354,7 +770,7 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 
 		// Output the original
 		final String prefix = parseCommandPrefix(input);
-		String output = input.substring(0, input.lastIndexOf(prefix));
+		String output = input.substring(0, getCommandPrefixStart(input));
 		if (matches.size() == 1) {
 			// Output the only match
 			output += matches.iterator().next() + " "; // append the single
@@ -362,30 +778,9 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 		} else {
 
 			// We output until the common prefix
-			StringBuilder commonPrefix = new StringBuilder(prefix);
-			final int maxLen = matches.iterator().next().length();
-			for (int i = prefix.length(); i < maxLen; i++) {
-				char c = 0;
-				boolean charMatch = true;
-				for (final String m : matches) {
-					if (c == 0) {
-						c = m.charAt(i);
-					} else if (i < m.length()) {
-						charMatch &= m.charAt(i) == c;
-						if (!charMatch) {
-							break;
-						}
-					} else {
-						charMatch = false;
-						break;
-					}
-				}
-				if (charMatch) {
-					commonPrefix.append(c);
-				}
-			}
-			output += commonPrefix.toString();
-			if (prefix.equals(commonPrefix.toString()) && !cancelIfNotASingleMatch) {
+			final String commonPrefix = getCommonPrefix(prefix, matches);
+			output += commonPrefix;
+			if (prefix.equals(commonPrefix) && !cancelIfNotASingleMatch) {
 				final StringBuffer suggestions = new StringBuffer("\n");
 				for (final String m : matches) {
 					suggestions.append(" " + m);
@@ -401,8 +796,38 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 
 	}
 
+	/**
+	 * Matches only get shorter common part, so each of them is compared up to
+	 * the common part found so far. Suggestions of a custom handler which do
+	 * not start with the prefix are ignored.
+	 */
+	static String getCommonPrefix(final String prefix, final Set<String> matches) {
+		String commonPrefix = null;
+		int length = 0;
+		for (final String m : matches) {
+			if (!m.startsWith(prefix)) {
+				continue;
+			}
+			if (commonPrefix == null) {
+				commonPrefix = m;
+				length = m.length();
+				continue;
+			}
+			int i = prefix.length();
+			final int max = Math.min(length, m.length());
+			while (i < max && commonPrefix.charAt(i) == m.charAt(i)) {
+				i++;
+			}
+			length = i;
+			if (length == prefix.length()) {
+				break;
+			}
+		}
+		return commonPrefix == null ? prefix : commonPrefix.substring(0, length);
+	}
+
 	public void bell() {
-		getRpcProxy(ConsoleClientRpc.class).bell();
+		getClientRpc().bell();
 	}
 
 	protected void handleInput(final String input) {
@@ -413,8 +838,15 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 	}
 
 	protected void parseAndExecuteCommand(final String input) {
-		final String[] argv = parseInput(input);
-		if (argv != null && argv.length > 0) {
+		inputParser.parse(input);
+		final String[] argv = inputParser.toArray();
+		if (inputParser.getUnclosedQuote() >= 0) {
+			print("ERROR: unclosed quote at position " + inputParser.getUnclosedQuote() + ".");
+			return;
+		}
+		if (argv.length > 0 && commandExecutor != null && getUI() != null) {
+			submitCommand(argv);
+		} else if (argv.length > 0) {
 			final Command c = getCommand(argv[0]);
 			if (c != null) {
 				final String result = executeCommand(c, argv);
@@ -427,12 +859,294 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 		}
 	}
 
+	/**
+	 * Run command on the command executor, or queue it if another command is
+	 * running. Must be called under the session lock.
+	 */
+	private void submitCommand(final String[] argv) {
+		if (runningCommand != null) {
+			if (queuedCommands == null) {
+				queuedCommands = new LinkedList<String[]>();
+			}
+			queuedCommands.add(argv);
+			return;
+		}
+		final Command cmd = getCommand(argv[0]);
+		if (cmd == null) {
+			handler.commandNotFound(this, argv);
+			return;
+		}
+		final CancellationToken token = new CancellationToken();
+		final CommandExecution execution = new CommandExecution(new Callable<Object>() {
+
+			@Override
+			public Object call() throws Exception {
+				return invokeCommand(cmd, argv, token);
+			}
+		}, cmd, argv, token);
+		runningCommand = execution;
+		execution.watchdog = startWatchdog(execution.timeout, new Runnable() {
+
+			@Override
+			public void run() {
+				execution.stop(true);
+			}
+		});
+		try {
+			commandExecutor.execute(execution);
+		} catch (final RejectedExecutionException e) {
+			runningCommand = null;
+			execution.stop(false);
+			handler.handleException(this, e, cmd, argv);
+		}
+	}
+
+	/**
+	 * Command running on the command executor.
+	 */
+	private class CommandExecution extends FutureTask<Object> {
+
+		final Command cmd;
+		final String[] argv;
+		final CancellationToken token;
+		final long timeout;
+		volatile Future<?> watchdog;
+		private volatile boolean isTimedOut;
+
+		CommandExecution(final Callable<Object> callable, final Command cmd, final String[] argv, final CancellationToken token) {
+			super(callable);
+			this.cmd = cmd;
+			this.argv = argv;
+			this.token = token;
+			timeout = getTimeout(cmd);
+		}
+
+		/**
+		 * Cancel the token and interrupt the thread of command.
+		 */
+		void stop(final boolean isTimedOut) {
+			this.isTimedOut = isTimedOut;
+			token.cancel();
+			cancel(true);
+		}
+
+		boolean isTimedOut() {
+			return isTimedOut;
+		}
+
+		@Override
+		protected void done() {
+			final Future<?> timeoutTask = watchdog;
+			if (timeoutTask != null) {
+				timeoutTask.cancel(false);
+			}
+			commandDone(this);
+		}
+
+	}
+
+	/**
+	 * Called by the thread of command or by the cancelling thread, the result
+	 * is printed under the session lock after the output of command. Result is
+	 * dropped if the console is not attached anymore, see {@link #detach()}.
+	 */
+	private void commandDone(final CommandExecution execution) {
+		flushStreams();
+		final UI ui = getUI();
+		if (ui != null) {
+			try {
+				ui.access(new Runnable() {
+
+					@Override
+					public void run() {
+						finishCommand(execution);
+						if (ui.getPushConfiguration().getPushMode() == PushMode.MANUAL) {
+							ui.push();
+						}
+					}
+				});
+			} catch (final UIDetachedException e) {
+				// Not attached anymore
+			}
+		}
+	}
+
+	private void finishCommand(final CommandExecution execution) {
+		if (execution != runningCommand) {
+			return;
+		}
+		runningCommand = null;
+		if (outputSink != null) {
+			outputSink.drain();
+		}
+		try {
+			final Object result = execution.get();
+			if (result != null) {
+				print("" + result);
+			}
+		} catch (final CancellationException e) {
+			final Exception reason = execution.isTimedOut() ? new TimeoutException("Command timed out after " + execution.timeout + " ms")
+					: new CancellationException("Command cancelled");
+			handler.handleException(this, reason, execution.cmd, execution.argv);
+		} catch (final ExecutionException e) {
+			final Throwable cause = e.getCause();
+			handler.handleException(this, cause instanceof Exception ? (Exception) cause : e, execution.cmd, execution.argv);
+		} catch (final InterruptedException e) {
+			// Task is done, get does not wait
+			Thread.currentThread().interrupt();
+		}
+		while (runningCommand == null && queuedCommands != null && !queuedCommands.isEmpty()) {
+			submitCommand(queuedCommands.removeFirst());
+		}
+		if (runningCommand == null && isPromptPending) {
+			isPromptPending = false;
+			if (pendingPromptInput != null) {
+				prompt(pendingPromptInput);
+			} else {
+				prompt();
+			}
+		}
+	}
+
+	/**
+	 * Cancel the running command and drop commands queued after it. Called
+	 * when the user presses Ctrl-C.
+	 * 
+	 * Command executed by the command executor is interrupted and its
+	 * {@link CancellationToken} is cancelled, the prompt is shown without
+	 * waiting for the thread of command. Command executed by the thread
+	 * handling input holds the session lock, so it can be cancelled by
+	 * timeout only.
+	 */
+	public void cancelCommand() {
+		if (queuedCommands != null) {
+			queuedCommands.clear();
+		}
+		if (runningCommand != null) {
+			runningCommand.stop(false);
+		}
+	}
+
+	/**
+	 * Results of commands cannot be shown anymore, so the running command is
+	 * cancelled and commands queued after it are dropped.
+	 */
+	@Override
+	public void detach() {
+		final CommandExecution execution = runningCommand;
+		runningCommand = null;
+		if (queuedCommands != null) {
+			queuedCommands.clear();
+		}
+		isPromptPending = false;
+		pendingPromptInput = null;
+		if (execution != null) {
+			execution.stop(false);
+		}
+		if (outputSink != null) {
+			// Drain task queued by the sink may be dropped with the UI
+			outputSink.drain();
+		}
+		super.detach();
+	}
+
+	private Object invokeCommand(final Command cmd, final String[] argv, final CancellationToken token) throws Exception {
+		if (cmd instanceof CancellableCommand) {
+			return ((CancellableCommand) cmd).execute(this, argv, token);
+		}
+		return cmd.execute(this, argv);
+	}
+
+	private long getTimeout(final Command cmd) {
+		final long timeout = cmd instanceof CancellableCommand ? ((CancellableCommand) cmd).getTimeout() : 0;
+		return timeout != 0 ? timeout : commandTimeout;
+	}
+
+	/**
+	 * @return null if there is no timeout
+	 */
+	private static Future<?> startWatchdog(final long timeout, final Runnable onTimeout) {
+		if (timeout <= 0) {
+			return null;
+		}
+		return ConsoleTimer.EXECUTOR.schedule(onTimeout, timeout, TimeUnit.MILLISECONDS);
+	}
+
+	public long getCommandTimeout() {
+		return commandTimeout;
+	}
+
+	/**
+	 * Commands running longer are cancelled, see {@link #cancelCommand()}.
+	 * {@link CancellableCommand} can define its own timeout.
+	 * 
+	 * @param commandTimeout
+	 *            timeout in milliseconds, 0 for no timeout
+	 */
+	public void setCommandTimeout(final long commandTimeout) {
+		this.commandTimeout = commandTimeout > 0 ? commandTimeout : 0;
+	}
+
+	private synchronized void flushStreams() {
+		if (printStream != null) {
+			printStream.flush();
+		}
+		if (writer != null) {
+			try {
+				writer.flush();
+			} catch (final IOException e) {
+				// Sink does not throw
+			}
+		}
+	}
+
+	/**
+	 * @return executor of commands, null if commands are executed by the
+	 *         thread handling input
+	 */
+	public Executor getCommandExecutor() {
+		return commandExecutor;
+	}
+
+	/**
+	 * Execute commands on the executor. Session lock is not held while a
+	 * command runs, print methods called by it go through
+	 * {@link #getOutputSink()}; the result of command is printed when it
+	 * completes. Output reaches the client by push if it is enabled, by the
+	 * next request otherwise.
+	 * 
+	 * Commands of one console run one by one, input received while a command
+	 * runs is executed after it. Prompt is shown when all commands complete.
+	 * Console which is not attached to a UI executes commands by the calling
+	 * thread, there is no session lock to print the result under.
+	 * 
+	 * @param commandExecutor
+	 *            executor, for example {@link CommandExecutors#getDefault()},
+	 *            null to execute commands by the thread handling input
+	 */
+	public void setCommandExecutor(final Executor commandExecutor) {
+		this.commandExecutor = commandExecutor;
+	}
+
 	protected String executeCommand(final Command cmd, final String[] argv) {
+		final CancellationToken token = new CancellationToken();
+		// Thread handling input is not interrupted
+		final Future<?> watchdog = startWatchdog(getTimeout(cmd), new Runnable() {
+
+			@Override
+			public void run() {
+				token.cancel();
+			}
+		});
 		try {
-			final Object r = cmd.execute(this, argv);
+			final Object r = invokeCommand(cmd, argv, token);
 			return r != null ? "" + r : null;
 		} catch (final Exception e) {
 			handler.handleException(this, e, cmd, argv);
+		} finally {
+			if (watchdog != null) {
+				watchdog.cancel(false);
+			}
 		}
 		return null;
 	}
@@ -441,47 +1155,30 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 		if (input == null) {
 			return null;
 		}
-		if (!input.endsWith(" ")) {
-			final String[] argv = parseInput(input);
-			if (argv != null && argv.length > 0) {
-				return argv[argv.length - 1];
-			}
+		inputParser.parse(input);
+		if (inputParser.getCount() > 0 && !inputParser.endsWithSeparator()) {
+			return inputParser.get(inputParser.getCount() - 1);
 		}
 		return "";
 	}
 
-	protected static String[] parseInput(final String input) {
-		if (input != null && !"".equals(input.trim())) {
-			final String[] temp = input.split(" ");
-			if (temp != null && temp.length > 0) {
-				final List<String> parsed = new ArrayList<String>(temp.length);
-				String current = null;
-				for (final String element : temp) {
-					final int quotCount = count(element, '\"');
-					if (quotCount > 0 && quotCount % 2 != 0) {
-						// uneven number of quotes star or end combining params
-						if (current != null) {
-							parsed.add(current + " " + element.replaceAll("\"", "")); // end
-							current = null;
-						} else {
-							current = element.replaceAll("\"", ""); // start
-						}
-					} else if (current != null) {
-						current += " " + element.replaceAll("\"", "");
-					} else {
-						parsed.add(element.replaceAll("\"", ""));
-					}
-				}
-
-				// TODO: actually this is not quite right: We have an open quote
-				// somewhere. Exception maybe?
-				if (current != null) {
-					parsed.add(current.replaceAll("\"", ""));
-				}
-				return parsed.toArray(new String[] {});
-			}
+	/**
+	 * @return position in input where the prefix returned by
+	 *         {@link #parseCommandPrefix(String)} starts
+	 */
+	private int getCommandPrefixStart(final String input) {
+		inputParser.parse(input);
+		if (inputParser.getCount() > 0 && !inputParser.endsWithSeparator()) {
+			return inputParser.getStart(inputParser.getCount() - 1);
 		}
-		return new String[] {};
+		return input.length();
+	}
+
+	/**
+	 * @see ConsoleInputParser
+	 */
+	protected static String[] parseInput(final String input) {
+		return new ConsoleInputParser().parse(input).toArray();
 	}
 
 	protected static int count(final String sourceString, final char lookFor) {
@@ -499,11 +1196,18 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 	}
 
 	public void print(final String output) {
+		if (isOutsideSessionLock()) {
+			getOutputSink().print(output);
+			return;
+		}
 		if (isConvertANSIToCSS) {
-			getRpcProxy(ConsoleClientRpc.class).print("");
+			if (screen.isEmpty())
+				getOutputFrame().print("");
 			appendWithProcessingANSICodes(output);
-		} else
-			getRpcProxy(ConsoleClientRpc.class).print(output);
+		} else {
+			getOutputFrame().print(output);
+			scrollback.append(output, null);
+		}
 	}
 
 	/**
@@ -518,80 +1222,152 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 			print(output);
 			return;
 		}
-		getRpcProxy(ConsoleClientRpc.class).printWithClass(output, className);
+		if (isOutsideSessionLock()) {
+			getOutputSink().print(output, className);
+			return;
+		}
+		getOutputFrame().print(output, className);
+		scrollback.append(output, className);
+	}
+
+	/**
+	 * Print a line made of style runs. Runs are sent as one print followed by
+	 * appends, the client renders them in one pass.
+	 * 
+	 * @param texts
+	 *            texts of runs
+	 * @param classNames
+	 *            CSS class names of runs, null for not styled runs
+	 */
+	public void printRuns(final String[] texts, final String[] classNames) {
+		if (texts.length != classNames.length) {
+			throw new IllegalArgumentException("Count of texts and class names must be equal");
+		}
+		if (isOutsideSessionLock()) {
+			final ConsoleOutputSink sink = getOutputSink();
+			for (int i = 0; i < texts.length; i++) {
+				sink.print(texts[i], classNames[i]);
+			}
+			return;
+		}
+		final OutputFrame frame = getOutputFrame();
+		for (int i = 0; i < texts.length; i++) {
+			final String className = classNames[i];
+			if (i == 0) {
+				if (className == null) {
+					frame.print(texts[i]);
+				} else {
+					frame.print(texts[i], className);
+				}
+			} else if (className == null) {
+				frame.append(texts[i]);
+			} else {
+				frame.append(texts[i], className);
+			}
+			scrollback.append(texts[i], className);
+		}
 	}
 
 	public String getGreeting() {
-		return config.greeting;
+		return getState(false).greeting;
 	}
 
 	public String getPs() {
-		return config.ps;
+		return getState(false).ps;
 	}
 
 	public int getMaxBufferSize() {
-		return config.maxBufferSize;
+		return getState(false).maxBufferSize;
 	}
 
+	/**
+	 * @return rows reported by the client, rows set on the server if the client
+	 *         did not report them yet
+	 */
 	public int getRows() {
-		return config.rows;
+		return clientRows > 0 ? clientRows : getState(false).rows;
 	}
 
 	public void setGreeting(final String greeting) {
-		config.greeting = greeting;
-		getRpcProxy(ConsoleClientRpc.class).setGreeting(greeting);
+		if (!isEqual(greeting, getGreeting())) {
+			getState().greeting = greeting;
+		}
 	}
 
 	public void setPs(final String ps) {
-		config.ps = ps == null ? DEFAULT_PS : ps;
-		getRpcProxy(ConsoleClientRpc.class).setPs(config.ps);
+		final String newPs = ps == null ? DEFAULT_PS : ps;
+		if (!newPs.equals(getPs())) {
+			getState().ps = newPs;
+		}
 	}
 
 	public void setMaxBufferSize(final int lines) {
-		config.maxBufferSize = lines > 0 ? lines : 0;
-		getRpcProxy(ConsoleClientRpc.class).setMaxBufferSize(config.maxBufferSize);
+		final int newMaxBufferSize = lines > 0 ? lines : 0;
+		if (newMaxBufferSize != getMaxBufferSize()) {
+			getState().maxBufferSize = newMaxBufferSize;
+		}
 	}
 
 	public void setRows(final int rows) {
-		config.rows = rows;
-		if (config.rows < 1) {
-			config.rows = 1;
-		}
-		if (config.rows > MAX_ROWS) {
-			config.rows = MAX_ROWS;
+		final int newRows = Math.max(1, Math.min(rows, MAX_ROWS));
+		if (newRows != getRows()) {
+			clientRows = -1;
+			getState().rows = newRows;
 		}
-		getRpcProxy(ConsoleClientRpc.class).setRows(rows);
 	}
 
+	/**
+	 * @return columns reported by the client, columns set on the server if the
+	 *         client did not report them yet
+	 */
 	public int getCols() {
-		return config.cols;
+		return clientCols > 0 ? clientCols : getState(false).cols;
 	}
 
 	public void setCols(final int cols) {
-		config.cols = cols;
-		if (config.cols < 1) {
-			config.cols = 1;
-		}
-		if (config.cols > MAX_COLS) {
-			config.cols = MAX_COLS;
+		final int newCols = Math.max(1, Math.min(cols, MAX_COLS));
+		if (newCols != getCols()) {
+			clientCols = -1;
+			getState().cols = newCols;
 		}
-		getRpcProxy(ConsoleClientRpc.class).setCols(config.cols);
+	}
+
+	private static boolean isEqual(final Object a, final Object b) {
+		return a == null ? b == null : a.equals(b);
 	}
 
 	public void prompt() {
-		getRpcProxy(ConsoleClientRpc.class).prompt();
+		if (runningCommand != null) {
+			// Shown when the command completes
+			isPromptPending = true;
+			pendingPromptInput = null;
+			return;
+		}
+		getClientRpc().prompt();
 	}
 
 	public void prompt(final String initialInput) {
-		getRpcProxy(ConsoleClientRpc.class).prompt(initialInput);
+		if (runningCommand != null) {
+			isPromptPending = true;
+			pendingPromptInput = initialInput;
+			return;
+		}
+		getClientRpc().prompt(initialInput);
 	}
 
 	public void println(final String string) {
+		if (isOutsideSessionLock()) {
+			getOutputSink().print(string + "\n");
+			return;
+		}
 		if (isConvertANSIToCSS) {
-			getRpcProxy(ConsoleClientRpc.class).print("");
+			if (screen.isEmpty())
+				getOutputFrame().print("");
 			appendWithProcessingANSICodes(string + "\n");
-		} else
-			getRpcProxy(ConsoleClientRpc.class).println(string);
+		} else {
+			getOutputFrame().print(string + "\n");
+			scrollback.append(string + "\n", null);
+		}
 	}
 
 	/**
@@ -606,7 +1382,12 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 			println(string);
 			return;
 		}
-		getRpcProxy(ConsoleClientRpc.class).printlnWithClass(string, className);
+		if (isOutsideSessionLock()) {
+			getOutputSink().print(string + "\n", className);
+			return;
+		}
+		getOutputFrame().print(string + "\n", className);
+		scrollback.append(string + "\n", className);
 	}
 
 	/**
@@ -615,37 +1396,22 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 	 * @return this Console object
 	 */
 	public Console append(final String string) {
+		if (isOutsideSessionLock()) {
+			getOutputSink().print(string);
+			return this;
+		}
 		if (isConvertANSIToCSS)
 			appendWithProcessingANSICodes(string);
-		else
-			getRpcProxy(ConsoleClientRpc.class).append(string);
+		else {
+			getOutputFrame().append(string);
+			scrollback.append(string, null);
+		}
 		return this;
 	}
 
 	private void appendWithProcessingANSICodes(String sOutput) {
-		String splitted[] = sOutput.split(ANSICodeConverter.ANSI_PATTERN);
-		String notPrintedYet = new String(sOutput);
-		for (int i = 0; i < splitted.length; i++) {
-			String nextStr = splitted[i];
-			if (i == 0 && nextStr.length() == 0)
-				continue;
-			String cssClasses = "";
-			Pattern firstAnsi = Pattern.compile("^(" + ANSICodeConverter.ANSI_PATTERN + ")+\\Q" + nextStr + "\\E.*", Pattern.DOTALL);
-			if (firstAnsi.matcher(notPrintedYet).matches()) {
-				while (firstAnsi.matcher(notPrintedYet).matches()) {
-					String ansi = notPrintedYet.replaceAll("\\Q" + notPrintedYet.replaceAll("^(" + ANSICodeConverter.ANSI_PATTERN + "){1}", "") + "\\E", "");
-					cssClasses += ansiToCSSconverter.convertANSIToCSS(ansi) + " ";
-					notPrintedYet = notPrintedYet.replaceAll("^(" + ANSICodeConverter.ANSI_PATTERN + "){1}", "");
-				}
-				notPrintedYet = notPrintedYet.replaceAll("^\\Q" + nextStr + "\\E", "");
-			} else
-				notPrintedYet = notPrintedYet.replaceFirst("\\Q" + nextStr + "\\E", "");
-			cssClasses = cssClasses.trim();
-			if (cssClasses.length() > 0)
-				getRpcProxy(ConsoleClientRpc.class).appendWithClass(nextStr, cssClasses);
-			else
-				getRpcProxy(ConsoleClientRpc.class).append(nextStr);
-		}
+		requestFlush();
+		ansiParser.parse(sOutput, screen);
 	}
 
 	/**
@@ -660,23 +1426,35 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 	public Console append(final String string, final String className) {
 		if (className == null)
 			return append(string);
-		getRpcProxy(ConsoleClientRpc.class).appendWithClass(string, className);
+		if (isOutsideSessionLock()) {
+			getOutputSink().print(string, className);
+			return this;
+		}
+		getOutputFrame().append(string, className);
+		scrollback.append(string, className);
 		return this;
 	}
 
 	public void newLine() {
-		getRpcProxy(ConsoleClientRpc.class).newLine();
+		if (isOutsideSessionLock()) {
+			getOutputSink().print("\n");
+			return;
+		}
+		getOutputFrame().op(ConsoleFrame.NEW_LINE);
+		scrollback.newLine();
 	}
 
 	/**
 	 * Print new line only if new line not exists at the end of console
 	 */
 	public void newLineIfNotEndsWithNewLine() {
-		getRpcProxy(ConsoleClientRpc.class).newLineIfNotEndsWithNewLine();
+		getOutputFrame().op(ConsoleFrame.NEW_LINE_IF_NOT_ENDS_WITH_NEW_LINE);
+		scrollback.newLineIfNotEmpty();
 	}
 
 	public void reset() {
-		getRpcProxy(ConsoleClientRpc.class).reset();
+		ansiParser.reset();
+		getClientRpc().reset();
 	}
 
 	public void clear() {
@@ -684,34 +1462,47 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 	}
 
 	public void formFeed() {
-		getRpcProxy(ConsoleClientRpc.class).ff();
+		getOutputFrame().op(ConsoleFrame.FORM_FEED);
+		scrollback.newLineIfNotEmpty();
 	}
 
 	public void carriageReturn() {
-		getRpcProxy(ConsoleClientRpc.class).cr();
+		getClientRpc().cr();
 	}
 
 	public void lineFeed() {
-		getRpcProxy(ConsoleClientRpc.class).lf();
+		getClientRpc().lf();
 	}
 
 	public void clearCommandHistory() {
-		getRpcProxy(ConsoleClientRpc.class).clearHistory();
+		getClientRpc().clearHistory();
 	}
 
 	public void clearBuffer() {
-		getRpcProxy(ConsoleClientRpc.class).clearBuffer();
+		getOutputFrame().op(ConsoleFrame.CLEAR_BUFFER);
+		scrollback.clear();
+	}
+
+	/**
+	 * Server-side copy of the output. Size of the client buffer is limited by
+	 * {@link #setMaxBufferSize(int)}, size of the scrollback is limited by
+	 * {@link ConsoleScrollback#setMaxLines(int)}.
+	 * 
+	 * @return scrollback of this console
+	 */
+	public ConsoleScrollback getScrollback() {
+		return scrollback;
 	}
 
 	public void scrollToEnd() {
-		getRpcProxy(ConsoleClientRpc.class).scrollToEnd();
+		getOutputFrame().op(ConsoleFrame.SCROLL_TO_END);
 	}
 
 	/**
 	 * Focus input element of console.
 	 */
 	public void focusInput() {
-		getRpcProxy(ConsoleClientRpc.class).focusInput();
+		getClientRpc().focusInput();
 	}
 
 	/**
@@ -742,29 +1533,53 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 
 	/* PrintStream implementation for console output. */
 
-	public PrintStream getPrintStream() {
-		if (printStream == null) {
-			printStream = new PrintStream(new OutputStream() {
+	/**
+	 * @return true if console is attached and the current thread does not
+	 *         hold the session lock, print methods queue output to the output
+	 *         sink then
+	 */
+	private boolean isOutsideSessionLock() {
+		return getOutputSink().isDrainedLater();
+	}
 
-				ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	/**
+	 * Output which can be used from any thread, see {@link ConsoleOutputSink}.
+	 * Keep the returned reference in worker threads.
+	 * 
+	 * @return output sink of this console
+	 */
+	public synchronized ConsoleOutputSink getOutputSink() {
+		if (outputSink == null) {
+			outputSink = new ConsoleOutputSink(this);
+		}
+		return outputSink;
+	}
 
-				@Override
-				public void write(final int b) throws IOException {
-					buffer.write(b);
-					// Line buffering
-					if (13 == b) {
-						flush();
-					}
-				}
+	/**
+	 * Writer which can be used from any thread, see {@link ConsoleWriter}.
+	 * 
+	 * @return writer to this console
+	 */
+	public synchronized ConsoleWriter getWriter() {
+		if (writer == null) {
+			writer = new ConsoleWriter(this);
+		}
+		return writer;
+	}
 
-				@Override
-				public void flush() throws IOException {
-					super.flush();
-					buffer.flush();
-					Console.this.print(buffer.toString());
-					buffer.reset();
-				}
-			}, true);
+	/**
+	 * Print stream which can be used from any thread. Bytes are decoded as
+	 * UTF-8, text is printed when a line is completed or on flush.
+	 * 
+	 * @return print stream to this console
+	 */
+	public synchronized PrintStream getPrintStream() {
+		if (printStream == null) {
+			try {
+				printStream = new PrintStream(new ConsoleOutputStream(getWriter(), UTF_8), false, UTF_8.name());
+			} catch (final UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
 		}
 		return printStream;
 	}
@@ -778,7 +1593,10 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 	 * {@link CommandProvider}.
 	 */
 	public void addCommand(final String name, final Command cmd) {
-		commands.put(name, cmd);
+		if (commands.put(name, cmd) == null) {
+			commandNames.add(name);
+		}
+		commandsVersion++;
 	}
 
 	/**
@@ -789,16 +1607,37 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 	 * @param cmdName
 	 */
 	public void removeCommand(final String cmdName) {
-		commands.remove(cmdName);
+		if (commands.containsKey(cmdName)) {
+			commands.remove(cmdName);
+			commandNames.remove(cmdName);
+			commandsVersion++;
+		}
 	}
 
 	/**
-	 * Get a Command by its name.
+	 * Get a Command by its name. Resolved commands are cached until commands
+	 * or command providers change.
 	 * 
 	 * @param cmdName
 	 * @return
 	 */
 	public Command getCommand(final String cmdName) {
+		if (resolvedCommandsVersion != commandsVersion) {
+			resolvedCommands.clear();
+			resolvedCommandsVersion = commandsVersion;
+		}
+		Command cmd = resolvedCommands.get(cmdName);
+		if (cmd == null) {
+			cmd = resolveCommand(cmdName);
+			// Not found names are not kept, any input would be cached otherwise
+			if (cmd != null) {
+				resolvedCommands.put(cmdName, cmd);
+			}
+		}
+		return cmd;
+	}
+
+	private Command resolveCommand(final String cmdName) {
 
 		// Try directly registered command first
 		Command cmd = commands.get(cmdName);
@@ -845,6 +1684,7 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 
 	public void setANSIToCSSConverter(ANSICodeConverter converter) {
 		this.ansiToCSSconverter = converter != null ? converter : new DefaultANSICodeConverter();
+		ansiParser.setConverter(ansiToCSSconverter);
 	}
 
 	/**
@@ -873,14 +1713,17 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 	 * @return
 	 */
 	public Set<String> getCommands() {
-		final Set<String> res = new HashSet<String>();
-		if (commandProviders != null) {
-			for (final CommandProvider cp : commandProviders) {
-				if (cp.getAvailableCommands(this) != null)
-					res.addAll(cp.getAvailableCommands(this));
-			}
-		}
-		res.addAll(commands.keySet());
-		return Collections.unmodifiableSet(res);
+		return getCommands("");
+	}
+
+	/**
+	 * Get names of available commands starting with the prefix.
+	 * 
+	 * @param prefix
+	 *            prefix of command names
+	 * @return names in lexicographic order
+	 */
+	public Set<String> getCommands(final String prefix) {
+		return Collections.unmodifiableSet(new LinkedHashSet<String>(commandNames.getNames(prefix)));
 	}
 }
@@ -0,0 +1,149 @@
+package org.vaadin7.console;
+
+import java.io.Serializable;
+
+/**
+ * Splits console input to arguments in one pass. Arguments are separated by
+ * spaces and tabs, double quotes group words into one argument, a backslash
+ * escapes a following quote, backslash, space or tab. Other backslashes are
+ * kept as is.
+ *
+ * Parser is reused: the result of the last parsed input is kept in it until
+ * the next call of {@link #parse(String)}.
+ *
+ * @author indvdum (gotoindvdum[at]gmail[dot]com)
+ * @since 18.10.2026 21:52:36
+ *
+ */
+public class ConsoleInputParser implements Serializable {
+
+	private static final long serialVersionUID = 3190851740376615285L;
+
+	private final StringBuilder current = new StringBuilder();
+	private String[] args = new String[8];
+	private int[] starts = new int[8];
+	private int count;
+	private int unclosedQuote = -1;
+	private boolean endsWithSeparator;
+
+	/**
+	 * @param input
+	 *            console input, null is parsed as empty input
+	 * @return this parser
+	 */
+	public ConsoleInputParser parse(final String input) {
+		for (int i = 0; i < count; i++) {
+			args[i] = null;
+		}
+		count = 0;
+		current.setLength(0);
+		final int length = input != null ? input.length() : 0;
+		int start = -1;
+		int quote = -1;
+		for (int i = 0; i < length; i++) {
+			final char c = input.charAt(i);
+			if (quote < 0 && isSeparator(c)) {
+				if (start >= 0) {
+					add(start);
+					start = -1;
+				}
+				continue;
+			}
+			if (start < 0) {
+				start = i;
+			}
+			if (c == '"') {
+				quote = quote < 0 ? i : -1;
+			} else if (c == '\\' && i + 1 < length && isEscapable(input.charAt(i + 1))) {
+				current.append(input.charAt(++i));
+			} else {
+				current.append(c);
+			}
+		}
+		endsWithSeparator = start < 0;
+		if (start >= 0) {
+			add(start);
+		}
+		unclosedQuote = quote;
+		return this;
+	}
+
+	/**
+	 * @return count of arguments
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return argument without quotes and escapes
+	 */
+	public String get(final int index) {
+		checkIndex(index);
+		return args[index];
+	}
+
+	/**
+	 * @return position of the first char of argument in input
+	 */
+	public int getStart(final int index) {
+		checkIndex(index);
+		return starts[index];
+	}
+
+	/**
+	 * @return position of quote which is not closed, -1 if all quotes are
+	 *         closed. Argument with not closed quote lasts to the end of
+	 *         input.
+	 */
+	public int getUnclosedQuote() {
+		return unclosedQuote;
+	}
+
+	/**
+	 * @return true if input is empty or ends with a separator which is not
+	 *         quoted or escaped
+	 */
+	public boolean endsWithSeparator() {
+		return endsWithSeparator;
+	}
+
+	/**
+	 * @return new array of arguments
+	 */
+	public String[] toArray() {
+		final String[] result = new String[count];
+		System.arraycopy(args, 0, result, 0, count);
+		return result;
+	}
+
+	private void add(final int start) {
+		if (count == args.length) {
+			final String[] newArgs = new String[count * 2];
+			System.arraycopy(args, 0, newArgs, 0, count);
+			args = newArgs;
+			final int[] newStarts = new int[count * 2];
+			System.arraycopy(starts, 0, newStarts, 0, count);
+			starts = newStarts;
+		}
+		args[count] = current.toString();
+		starts[count] = start;
+		count++;
+		current.setLength(0);
+	}
+
+	private void checkIndex(final int index) {
+		if (index < 0 || index >= count) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", count: " + count);
+		}
+	}
+
+	private static boolean isSeparator(final char c) {
+		return c == ' ' || c == '\t';
+	}
+
+	private static boolean isEscapable(final char c) {
+		return c == '"' || c == '\\' || isSeparator(c);
+	}
+
+}
@@ -0,0 +1,457 @@
+package org.vaadin7.console;
+
+import java.lang.reflect.Method;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vaadin.server.VaadinSession;
+import com.vaadin.shared.communication.PushMode;
+import com.vaadin.ui.UI;
+import com.vaadin.ui.UIDetachedException;
+
+/**
+ * Output of {@link Console} which can be used from any thread without taking
+ * the session lock.
+ *
+ * Texts are put to a lock-free queue. The first text put to an empty queue
+ * schedules a single drain task with {@link UI#access(Runnable)}, the task
+ * prints everything queued until it runs as one batch, so producers never
+ * wait for each other or for the session lock.
+ *
+ * Size of the queue is limited by {@link #setMaxQueuedBytes(long)} and
+ * {@link #setMaxQueuedLines(int)}. What happens when producers are faster
+ * than the client is defined by {@link OverflowPolicy}.
+ *
+ * @author indvdum (gotoindvdum[at]gmail[dot]com)
+ * @since 18.10.2026 17:40:26
+ *
+ */
+public class ConsoleOutputSink {
+
+	/**
+	 * Default max size of queued texts in bytes.
+	 */
+	public static final long DEFAULT_MAX_QUEUED_BYTES = 4 * 1024 * 1024;
+
+	/**
+	 * Default max count of queued lines.
+	 */
+	public static final int DEFAULT_MAX_QUEUED_LINES = 10000;
+
+	/**
+	 * Behavior of {@link ConsoleOutputSink#print(String, String)} when the
+	 * queue is full.
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * Producer waits until the queue is drained. Threads holding the
+		 * session lock never wait.
+		 */
+		BLOCK,
+		/**
+		 * Only the last part of the overflowing output is kept, the middle of
+		 * output is replaced with a "N lines skipped" line.
+		 */
+		SHED
+	}
+
+	/**
+	 * Queued text.
+	 */
+	private static class Item {
+
+		final String text;
+		final String className;
+		final int lines;
+		final FutureTask<Void> future;
+
+		Item(final String text, final String className, final FutureTask<Void> future) {
+			this.text = text;
+			this.className = className;
+			this.future = future;
+			lines = countLines(text);
+		}
+
+		long getBytes() {
+			return text.length() * 2;
+		}
+
+		void done() {
+			if (future != null) {
+				future.run();
+			}
+		}
+
+	}
+
+	private static final Runnable NOTHING = new Runnable() {
+
+		@Override
+		public void run() {
+		}
+	};
+
+	private final Console console;
+	private final Queue<Item> queue = new ConcurrentLinkedQueue<Item>();
+	private final AtomicLong queuedBytes = new AtomicLong();
+	private final AtomicInteger queuedLines = new AtomicInteger();
+	private final AtomicBoolean isDrainScheduled = new AtomicBoolean();
+	private final Runnable drainTask = new Runnable() {
+
+		@Override
+		public void run() {
+			drain();
+			final UI ui = console.getUI();
+			if (ui != null && ui.getPushConfiguration().getPushMode() == PushMode.MANUAL) {
+				ui.push();
+			}
+		}
+	};
+
+	private volatile long maxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+	private volatile int maxQueuedLines = DEFAULT_MAX_QUEUED_LINES;
+	private volatile OverflowPolicy overflowPolicy = OverflowPolicy.SHED;
+
+	/**
+	 * Last part of shed output, guarded by itself.
+	 */
+	private final LinkedList<Item> tail = new LinkedList<Item>();
+	private volatile boolean isShedding;
+	private long tailBytes;
+	private int tailLines;
+	private int skippedLines;
+
+	private final Object capacityLock = new Object();
+
+	public ConsoleOutputSink(final Console console) {
+		this.console = console;
+	}
+
+	public long getMaxQueuedBytes() {
+		return maxQueuedBytes;
+	}
+
+	/**
+	 * @param maxQueuedBytes
+	 *            max size of queued texts, chars are counted as two bytes
+	 */
+	public void setMaxQueuedBytes(final long maxQueuedBytes) {
+		this.maxQueuedBytes = maxQueuedBytes > 0 ? maxQueuedBytes : 1;
+	}
+
+	public int getMaxQueuedLines() {
+		return maxQueuedLines;
+	}
+
+	/**
+	 * @param maxQueuedLines
+	 *            max count of queued lines
+	 */
+	public void setMaxQueuedLines(final int maxQueuedLines) {
+		this.maxQueuedLines = maxQueuedLines > 0 ? maxQueuedLines : 1;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	public void setOverflowPolicy(final OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy != null ? overflowPolicy : OverflowPolicy.SHED;
+	}
+
+	/**
+	 * @return size of queued texts in bytes
+	 */
+	public long getQueuedBytes() {
+		return queuedBytes.get();
+	}
+
+	/**
+	 * @return count of queued lines
+	 */
+	public int getQueuedLines() {
+		return queuedLines.get();
+	}
+
+	/**
+	 * @param text
+	 *            text to print
+	 */
+	public void print(final String text) {
+		print(text, null);
+	}
+
+	/**
+	 * Queue text to print, may wait if the queue is full and overflow policy
+	 * is {@link OverflowPolicy#BLOCK}.
+	 *
+	 * @param text
+	 *            text to print
+	 * @param className
+	 *            CSS class name of text or null
+	 */
+	public void print(final String text, final String className) {
+		if (text == null || text.length() == 0) {
+			return;
+		}
+		put(new Item(text, className, null), true);
+	}
+
+	/**
+	 * Queue text to print without waiting.
+	 *
+	 * @param text
+	 *            text to print
+	 * @param className
+	 *            CSS class name of text or null
+	 * @return future which is done when the text is printed to the console or
+	 *         skipped
+	 */
+	public Future<Void> printAsync(final String text, final String className) {
+		final FutureTask<Void> future = new FutureTask<Void>(NOTHING, null);
+		if (text == null || text.length() == 0) {
+			future.run();
+			return future;
+		}
+		put(new Item(text, className, future), false);
+		return future;
+	}
+
+	/**
+	 * Print all queued texts to the console. Must be called under the session
+	 * lock.
+	 */
+	public void drain() {
+		// Texts put after this are printed now or by the next drain task
+		isDrainScheduled.set(false);
+		final Batch batch = new Batch();
+		Item item;
+		while ((item = queue.poll()) != null) {
+			queuedBytes.addAndGet(-item.getBytes());
+			queuedLines.addAndGet(-item.lines);
+			batch.add(item);
+		}
+		if (isShedding) {
+			synchronized (tail) {
+				if (skippedLines > 0) {
+					batch.add(new Item((batch.isLineStart() ? "" : "\n") + "... " + skippedLines + " lines skipped ...\n", null, null));
+				}
+				for (final Item tailItem : tail) {
+					batch.add(tailItem);
+				}
+				tail.clear();
+				tailBytes = 0;
+				tailLines = 0;
+				skippedLines = 0;
+				isShedding = false;
+			}
+		}
+		synchronized (capacityLock) {
+			capacityLock.notifyAll();
+		}
+		batch.flush();
+	}
+
+	/**
+	 * Merges consecutive texts with the same CSS class.
+	 */
+	private class Batch {
+
+		private final StringBuilder text = new StringBuilder();
+		private String className;
+		private final LinkedList<Item> items = new LinkedList<Item>();
+		private boolean isLineStart = true;
+
+		boolean isLineStart() {
+			return isLineStart;
+		}
+
+		void add(final Item item) {
+			isLineStart = item.text.charAt(item.text.length() - 1) == '\n';
+			if (text.length() > 0 && !equals(className, item.className)) {
+				flush();
+			}
+			text.append(item.text);
+			className = item.className;
+			items.add(item);
+		}
+
+		void flush() {
+			if (text.length() > 0) {
+				console.print(text.toString(), className);
+				text.setLength(0);
+			}
+			for (final Item item : items) {
+				item.done();
+			}
+			items.clear();
+		}
+
+		private boolean equals(final String s1, final String s2) {
+			return s1 == null ? s2 == null : s1.equals(s2);
+		}
+
+	}
+
+	private void put(final Item item, final boolean mayWait) {
+		final boolean isDrainedLater = isDrainedLater();
+		if (isDrainedLater && (isShedding || isFull())) {
+			if (overflowPolicy == OverflowPolicy.SHED) {
+				if (shed(item)) {
+					scheduleDrain(true);
+					return;
+				}
+			} else if (mayWait) {
+				awaitCapacity();
+			}
+		}
+		queue.offer(item);
+		queuedBytes.addAndGet(item.getBytes());
+		queuedLines.addAndGet(item.lines);
+		scheduleDrain(isDrainedLater);
+	}
+
+	/**
+	 * @return true if the queue must be drained by a task scheduled with
+	 *         {@link #access(Runnable)}, false if the current thread can drain
+	 *         it, that is console is not attached or session is locked by the
+	 *         current thread
+	 */
+	protected boolean isDrainedLater() {
+		final UI ui = console.getUI();
+		final Object session = ui != null ? ui.getSession() : null;
+		return session != null && !hasLock(session);
+	}
+
+	/**
+	 * Run task under the session lock.
+	 * 
+	 * @param task
+	 *            task
+	 * @return false if the console is not attached anymore and the task will
+	 *         not run
+	 */
+	protected boolean access(final Runnable task) {
+		final UI ui = console.getUI();
+		if (ui == null) {
+			return false;
+		}
+		try {
+			ui.access(task);
+			return true;
+		} catch (final UIDetachedException e) {
+			return false;
+		}
+	}
+
+	private boolean isFull() {
+		return queuedBytes.get() >= maxQueuedBytes || queuedLines.get() >= maxQueuedLines;
+	}
+
+	/**
+	 * Put item to the tail, the oldest items of tail are skipped. Tail is
+	 * limited to a tenth of the queue limits.
+	 *
+	 * @return false if the queue is not full anymore
+	 */
+	private boolean shed(final Item item) {
+		synchronized (tail) {
+			if (!isShedding && !isFull()) {
+				return false;
+			}
+			isShedding = true;
+			tail.add(item);
+			tailBytes += item.getBytes();
+			tailLines += item.lines;
+			while (tail.size() > 1 && (tailBytes > maxQueuedBytes / 10 || tailLines > maxQueuedLines / 10)) {
+				final Item skipped = tail.removeFirst();
+				tailBytes -= skipped.getBytes();
+				tailLines -= skipped.lines;
+				skippedLines += skipped.lines > 0 ? skipped.lines : 1;
+				skipped.done();
+			}
+			return true;
+		}
+	}
+
+	private void awaitCapacity() {
+		while (isFull()) {
+			// Not under capacityLock, the current thread may drain
+			scheduleDrain(true);
+			synchronized (capacityLock) {
+				if (!isFull()) {
+					return;
+				}
+				try {
+					capacityLock.wait(100);
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drain by the current thread if it may, otherwise by a task run under the
+	 * session lock. Console detached in between is drained by the current
+	 * thread as well, nothing would drain it otherwise.
+	 */
+	private void scheduleDrain(final boolean isDrainedLater) {
+		if (!isDrainScheduled.compareAndSet(false, true)) {
+			// Drain task will print it
+			return;
+		}
+		if (!isDrainedLater || !access(drainTask)) {
+			synchronized (this) {
+				drain();
+			}
+		}
+	}
+
+	private static int countLines(final String text) {
+		int lines = 0;
+		for (int i = 0; i < text.length(); i++) {
+			if (text.charAt(i) == '\n') {
+				lines++;
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * VaadinSession is accessed by reflection, otherwise servlet API is
+	 * required to compile the add-on.
+	 */
+	static boolean hasLock(final Object session) {
+		try {
+			return HasLock.METHOD != null && (Boolean) HasLock.METHOD.invoke(session);
+		} catch (final Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Looked up once, when the first session is checked.
+	 */
+	private static class HasLock {
+
+		static final Method METHOD = getMethod();
+
+		private static Method getMethod() {
+			try {
+				return VaadinSession.class.getMethod("hasLock");
+			} catch (final Exception e) {
+				return null;
+			}
+		}
+
+	}
+
+}
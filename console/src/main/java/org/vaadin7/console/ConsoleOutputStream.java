@@ -0,0 +1,93 @@
+package org.vaadin7.console;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Output stream decoding bytes to a {@link ConsoleWriter}. Bytes of a multi
+ * byte char split between writes are kept until the char is complete, so the
+ * text is never garbled by flushes.
+ *
+ * @author indvdum (gotoindvdum[at]gmail[dot]com)
+ * @since 18.10.2026 17:02:54
+ *
+ */
+public class ConsoleOutputStream extends OutputStream {
+
+	private static final int BUFFER_SIZE = 4096;
+
+	private final Writer writer;
+	private final CharsetDecoder decoder;
+	private final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+	private final CharBuffer out = CharBuffer.allocate(BUFFER_SIZE);
+
+	/**
+	 * @param writer
+	 *            writer to write decoded chars to
+	 * @param charset
+	 *            charset of bytes
+	 */
+	public ConsoleOutputStream(final Writer writer, final Charset charset) {
+		this.writer = writer;
+		decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+
+	@Override
+	public synchronized void write(final int b) throws IOException {
+		in.put((byte) b);
+		// Single bytes are decoded by lines, writer prints by lines anyway
+		if (b == '\n' || !in.hasRemaining()) {
+			decode(false);
+		}
+	}
+
+	@Override
+	public synchronized void write(final byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			final int count = Math.min(len, in.remaining());
+			in.put(b, off, count);
+			off += count;
+			len -= count;
+			decode(false);
+		}
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		decode(false);
+		writer.flush();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		decode(true);
+		decoder.flush(out);
+		writeOut();
+		decoder.reset();
+		writer.flush();
+	}
+
+	private void decode(final boolean endOfInput) throws IOException {
+		in.flip();
+		while (decoder.decode(in, out, endOfInput).isOverflow()) {
+			writeOut();
+		}
+		writeOut();
+		// Incomplete char stays at the start of buffer
+		in.compact();
+	}
+
+	private void writeOut() throws IOException {
+		if (out.position() > 0) {
+			writer.write(out.array(), 0, out.position());
+			out.clear();
+		}
+	}
+
+}
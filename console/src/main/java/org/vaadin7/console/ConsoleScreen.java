@@ -0,0 +1,362 @@
+package org.vaadin7.console;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.vaadin7.console.ansi.ANSIStreamParser;
+import org.vaadin7.console.client.ConsoleFrame;
+
+/**
+ * Server-side model of the last output lines which can still be changed by
+ * carriage return, backspace, erase in line (CSI K), erase in display (CSI J)
+ * and cursor movement sequences (CSI A, B, C, D, E, F, G).
+ *
+ * Changes are applied in place, only new and changed lines are written to the
+ * output frame on {@link #flush()}, so a progress bar redrawn thousands of
+ * times costs one line per frame instead of thousands of lines of scrollback.
+ * Lines which are scrolled out of the screen or {@link #commit() committed}
+ * stay on the client as they are and are added to the scrollback.
+ *
+ * @author indvdum (gotoindvdum[at]gmail[dot]com)
+ * @since 18.10.2026 15:12:44
+ *
+ */
+class ConsoleScreen implements ANSIStreamParser.Listener, Serializable {
+
+	private static final long serialVersionUID = -4611283709237413358L;
+
+	/**
+	 * Max count of lines which can be changed in place.
+	 */
+	public static final int MAX_LINES = 200;
+
+	/**
+	 * Max length of a line, a few times more than max columns of console.
+	 * Longer text is wrapped to the next line, cursor movements are clamped to
+	 * the last column, so a short sequence cannot allocate a huge line.
+	 */
+	public static final int MAX_LINE_LENGTH = 2048;
+
+	/**
+	 * One line of the screen, each char has its own style.
+	 */
+	private static class Line implements Serializable {
+
+		private static final long serialVersionUID = -3163985716290117186L;
+
+		private char[] chars = new char[32];
+		private String[] styles = new String[32];
+		private int length;
+		private boolean isChanged = true;
+
+		void put(final int col, final char c, final String style) {
+			if (col >= chars.length) {
+				int capacity = chars.length * 2;
+				while (capacity <= col) {
+					capacity *= 2;
+				}
+				final char[] newChars = new char[capacity];
+				final String[] newStyles = new String[capacity];
+				System.arraycopy(chars, 0, newChars, 0, length);
+				System.arraycopy(styles, 0, newStyles, 0, length);
+				chars = newChars;
+				styles = newStyles;
+			}
+			for (int i = length; i < col; i++) {
+				chars[i] = ' ';
+				styles[i] = null;
+			}
+			chars[col] = c;
+			styles[col] = style;
+			if (col >= length) {
+				length = col + 1;
+			}
+			isChanged = true;
+		}
+
+		void truncate(final int col) {
+			if (col < length) {
+				length = col;
+				isChanged = true;
+			}
+		}
+
+		void erase(final int to) {
+			final int end = to < length ? to : length;
+			for (int i = 0; i < end; i++) {
+				chars[i] = ' ';
+				styles[i] = null;
+			}
+			isChanged = true;
+		}
+
+	}
+
+	private final OutputFrame frame;
+	private final ConsoleScrollback scrollback;
+	private final List<Line> lines = new ArrayList<Line>();
+	private int row;
+	private int col;
+	/**
+	 * Count of lines rendered on the client, they are the last screen lines in
+	 * the client buffer.
+	 */
+	private int sentLines;
+	private int pendingTruncate;
+
+	ConsoleScreen(final OutputFrame frame, final ConsoleScrollback scrollback) {
+		this.frame = frame;
+		this.scrollback = scrollback;
+	}
+
+	/**
+	 * @return true if there are no lines which can be changed in place
+	 */
+	public boolean isEmpty() {
+		return lines.isEmpty();
+	}
+
+	@Override
+	public void text(final String text, final String cssClasses) {
+		final String style = cssClasses.length() > 0 ? cssClasses : null;
+		for (int i = 0; i < text.length(); i++) {
+			final char c = text.charAt(i);
+			if (c == '\n') {
+				lineFeed();
+			} else {
+				if (col >= MAX_LINE_LENGTH) {
+					lineFeed();
+				}
+				getCurrentLine().put(col, c, style);
+				col++;
+			}
+		}
+	}
+
+	@Override
+	public void control(final char c) {
+		if (c == '\r') {
+			col = 0;
+		} else if (c == '\b' && col > 0) {
+			col--;
+		}
+	}
+
+	@Override
+	public void sequence(final char command, final int[] params, final int count) {
+		final int param = count > 0 ? params[0] : -1;
+		final int n = param > 0 ? param : 1;
+		switch (command) {
+		case 'A':
+			row = row - n > 0 ? row - n : 0;
+			break;
+		case 'B':
+			moveDown(n);
+			break;
+		case 'C':
+			col = col + n < MAX_LINE_LENGTH ? col + n : MAX_LINE_LENGTH - 1;
+			break;
+		case 'D':
+			col = col - n > 0 ? col - n : 0;
+			break;
+		case 'E':
+			moveDown(n);
+			col = 0;
+			break;
+		case 'F':
+			row = row - n > 0 ? row - n : 0;
+			col = 0;
+			break;
+		case 'G':
+			col = n < MAX_LINE_LENGTH ? n - 1 : MAX_LINE_LENGTH - 1;
+			break;
+		case 'K':
+			if (param <= 0) {
+				getCurrentLine().truncate(col);
+			} else if (param == 1) {
+				getCurrentLine().erase(col + 1);
+			} else if (param == 2) {
+				getCurrentLine().truncate(0);
+			}
+			break;
+		case 'J':
+			if (param <= 0) {
+				getCurrentLine().truncate(col);
+				removeLinesFrom(row + 1);
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Write new and changed lines to the output frame.
+	 */
+	public void flush() {
+		flushTruncate();
+		for (int i = 0; i < lines.size(); i++) {
+			final Line line = lines.get(i);
+			if (i >= sentLines) {
+				frame.op(ConsoleFrame.SCREEN_LINE);
+				writeLine(line, i < lines.size() - 1);
+			} else if (line.isChanged) {
+				frame.op(ConsoleFrame.UPDATE_SCREEN_LINE, String.valueOf(sentLines - i));
+				writeLine(line, i < lines.size() - 1);
+			}
+		}
+		sentLines = lines.size();
+	}
+
+	/**
+	 * Write all changes to the output frame and forget all lines, they can
+	 * not be changed anymore.
+	 */
+	public void commit() {
+		if (lines.isEmpty() && pendingTruncate == 0) {
+			return;
+		}
+		flush();
+		for (int i = 0; i < lines.size(); i++) {
+			storeLine(lines.get(i), i < lines.size() - 1);
+		}
+		clear();
+	}
+
+	/**
+	 * Forget all lines without writing changes, for example when client
+	 * buffer was cleared.
+	 */
+	public void clear() {
+		lines.clear();
+		row = 0;
+		col = 0;
+		sentLines = 0;
+		pendingTruncate = 0;
+	}
+
+	private Line getCurrentLine() {
+		while (lines.size() <= row) {
+			addLine();
+		}
+		return lines.get(row);
+	}
+
+	private void lineFeed() {
+		getCurrentLine();
+		if (row == lines.size() - 1) {
+			addLine();
+		}
+		row++;
+		col = 0;
+	}
+
+	private void moveDown(final int n) {
+		final int last = lines.size() > 0 ? lines.size() - 1 : 0;
+		row = row + n < last ? row + n : last;
+	}
+
+	private void addLine() {
+		if (!lines.isEmpty()) {
+			// Line is terminated now, so it must be sent again
+			lines.get(lines.size() - 1).isChanged = true;
+		}
+		lines.add(new Line());
+		if (lines.size() > MAX_LINES) {
+			scrollOut();
+		}
+	}
+
+	/**
+	 * Remove the first line from the screen, it must be written first if it
+	 * was not sent yet.
+	 */
+	private void scrollOut() {
+		final Line first = lines.get(0);
+		flushTruncate();
+		if (sentLines == 0) {
+			frame.op(ConsoleFrame.SCREEN_LINE);
+			writeLine(first, true);
+		} else {
+			if (first.isChanged) {
+				frame.op(ConsoleFrame.UPDATE_SCREEN_LINE, String.valueOf(sentLines));
+				writeLine(first, true);
+			}
+			sentLines--;
+		}
+		storeLine(first, true);
+		lines.remove(0);
+		if (row > 0) {
+			row--;
+		}
+	}
+
+	private void removeLinesFrom(final int index) {
+		if (index >= lines.size()) {
+			return;
+		}
+		while (lines.size() > index) {
+			lines.remove(lines.size() - 1);
+		}
+		if (sentLines > index) {
+			pendingTruncate += sentLines - index;
+			sentLines = index;
+		}
+		if (index > 0) {
+			// Last line is not terminated anymore
+			lines.get(index - 1).isChanged = true;
+		}
+	}
+
+	private void flushTruncate() {
+		if (pendingTruncate > 0) {
+			frame.op(ConsoleFrame.TRUNCATE_SCREEN_LINES, String.valueOf(pendingTruncate));
+			pendingTruncate = 0;
+		}
+	}
+
+	private void writeLine(final Line line, final boolean isTerminated) {
+		int start = 0;
+		while (start < line.length) {
+			final int end = getRunEnd(line, start);
+			final String text = new String(line.chars, start, end - start);
+			final String style = line.styles[start];
+			if (style == null) {
+				frame.op(ConsoleFrame.RUN, text);
+			} else {
+				frame.op(ConsoleFrame.RUN_WITH_CLASS, text, style);
+			}
+			start = end;
+		}
+		if (isTerminated) {
+			frame.op(ConsoleFrame.SCREEN_LINE_BREAK);
+		}
+		line.isChanged = false;
+	}
+
+	private void storeLine(final Line line, final boolean isTerminated) {
+		int start = 0;
+		while (start < line.length) {
+			final int end = getRunEnd(line, start);
+			scrollback.append(new String(line.chars, start, end - start), line.styles[start]);
+			start = end;
+		}
+		if (isTerminated) {
+			scrollback.newLine();
+		}
+	}
+
+	/**
+	 * @return end of run of chars with the same style
+	 */
+	private static int getRunEnd(final Line line, final int start) {
+		final String style = line.styles[start];
+		int end = start + 1;
+		while (end < line.length && (line.styles[end] == style || (style != null && style.equals(line.styles[end])))) {
+			end++;
+		}
+		return end;
+	}
+
+}
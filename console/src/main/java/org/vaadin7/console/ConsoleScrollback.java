@@ -0,0 +1,443 @@
+package org.vaadin7.console;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Server-side copy of the console output: a bounded ring buffer of logical
+ * lines with their style runs. When the buffer is full the oldest lines are
+ * dropped.
+ *
+ * Text of a line is kept in a single char array, styles are kept as pairs of
+ * run end offset and index in a shared dictionary of CSS class names, so no
+ * String objects are held per line. Lines are numbered from the start of
+ * output, numbers of dropped lines are not reused.
+ *
+ * Only final output is stored: lines which still can be changed in place by
+ * ANSI control sequences are added when they leave the screen.
+ *
+ * @author indvdum (gotoindvdum[at]gmail[dot]com)
+ * @since 18.10.2026 16:05:37
+ *
+ */
+public class ConsoleScrollback implements Serializable {
+
+	private static final long serialVersionUID = 6403356932447136817L;
+
+	/**
+	 * Default max count of lines.
+	 */
+	public static final int DEFAULT_MAX_LINES = 1000;
+
+	/**
+	 * Max length of a line, longer text is continued on the next line, as on
+	 * the screen. Output without new line chars cannot grow the last line
+	 * unbounded.
+	 */
+	public static final int MAX_LINE_LENGTH = ConsoleScreen.MAX_LINE_LENGTH;
+
+	/**
+	 * Approximate size of array header and reference to it in bytes.
+	 */
+	private static final int ARRAY_OVERHEAD = 24;
+
+	private static final char[] NO_CHARS = new char[0];
+
+	/**
+	 * Style run of a line.
+	 */
+	public static class Run implements Serializable {
+
+		private static final long serialVersionUID = -6954312286339128120L;
+
+		private final String text;
+		private final String className;
+
+		Run(final String text, final String className) {
+			this.text = text;
+			this.className = className;
+		}
+
+		public String getText() {
+			return text;
+		}
+
+		/**
+		 * @return CSS class names of run or null if run is not styled
+		 */
+		public String getClassName() {
+			return className;
+		}
+
+	}
+
+	private int maxLines;
+	private char[][] texts = new char[16][];
+	/**
+	 * Pairs of run end offset and style index, null for lines without
+	 * styles.
+	 */
+	private int[][] runs = new int[16][];
+	private int head;
+	private int size;
+	private long firstLineNumber;
+	private long memoryUsage;
+
+	private char[] openText = new char[64];
+	private int openLength;
+	private int[] openRuns = new int[8];
+	private int openRunsLength;
+	private boolean hasOpenStyles;
+
+	private final List<String> styles = new ArrayList<String>();
+	private final Map<String, Integer> styleIndexes = new HashMap<String, Integer>();
+
+	public ConsoleScrollback() {
+		this(DEFAULT_MAX_LINES);
+	}
+
+	/**
+	 * @param maxLines
+	 *            max count of stored lines, 0 disables storing
+	 */
+	public ConsoleScrollback(final int maxLines) {
+		setMaxLines(maxLines);
+	}
+
+	public int getMaxLines() {
+		return maxLines;
+	}
+
+	/**
+	 * @param maxLines
+	 *            max count of stored lines, 0 disables storing, oldest lines
+	 *            are dropped if there are more lines
+	 */
+	public void setMaxLines(final int maxLines) {
+		this.maxLines = maxLines > 0 ? maxLines : 0;
+		while (size > this.maxLines) {
+			removeFirst();
+		}
+	}
+
+	/**
+	 * @return count of lines including the last not terminated line
+	 */
+	public int getLineCount() {
+		return size + (isOpenLineEmpty() ? 0 : 1);
+	}
+
+	/**
+	 * @return number of the first stored line
+	 */
+	public long getFirstLineNumber() {
+		return firstLineNumber;
+	}
+
+	/**
+	 * @return number after the last stored line
+	 */
+	public long getEndLineNumber() {
+		return firstLineNumber + getLineCount();
+	}
+
+	/**
+	 * @param lineNumber
+	 *            number of line
+	 * @return text of line without styles
+	 */
+	public String getText(final long lineNumber) {
+		final int index = getIndex(lineNumber);
+		if (index < 0) {
+			return new String(openText, 0, openLength);
+		}
+		return new String(texts[index]);
+	}
+
+	/**
+	 * @param lineNumber
+	 *            number of line
+	 * @return style runs of line
+	 */
+	public List<Run> getRuns(final long lineNumber) {
+		final int index = getIndex(lineNumber);
+		final char[] text;
+		final int length;
+		final int[] lineRuns;
+		final int runsLength;
+		if (index < 0) {
+			text = openText;
+			length = openLength;
+			lineRuns = hasOpenStyles ? openRuns : null;
+			runsLength = openRunsLength;
+		} else {
+			text = texts[index];
+			length = text.length;
+			lineRuns = runs[index];
+			runsLength = lineRuns != null ? lineRuns.length : 0;
+		}
+		final List<Run> result = new ArrayList<Run>();
+		if (lineRuns == null) {
+			if (length > 0) {
+				result.add(new Run(new String(text, 0, length), null));
+			}
+			return result;
+		}
+		int start = 0;
+		for (int i = 0; i < runsLength; i += 2) {
+			final int end = lineRuns[i];
+			final int style = lineRuns[i + 1];
+			result.add(new Run(new String(text, start, end - start), style >= 0 ? styles.get(style) : null));
+			start = end;
+		}
+		return result;
+	}
+
+	/**
+	 * Find the first line containing text.
+	 *
+	 * @param text
+	 *            text to search
+	 * @param fromLineNumber
+	 *            number of the first line to search from
+	 * @return number of line or -1 if text not found
+	 */
+	public long find(final String text, final long fromLineNumber) {
+		final long end = getEndLineNumber();
+		for (long n = fromLineNumber > firstLineNumber ? fromLineNumber : firstLineNumber; n < end; n++) {
+			final int index = getIndex(n);
+			if (index < 0 ? indexOf(openText, openLength, text) >= 0 : indexOf(texts[index], texts[index].length, text) >= 0) {
+				return n;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Write text of all lines without styles.
+	 *
+	 * @param out
+	 *            where to write
+	 * @throws IOException
+	 */
+	public void export(final Appendable out) throws IOException {
+		for (int i = 0; i < size; i++) {
+			final char[] text = texts[(head + i) % texts.length];
+			for (int j = 0; j < text.length; j++) {
+				out.append(text[j]);
+			}
+			out.append('\n');
+		}
+		for (int j = 0; j < openLength; j++) {
+			out.append(openText[j]);
+		}
+	}
+
+	/**
+	 * @return approximate count of bytes used by stored lines
+	 */
+	public long getMemoryUsage() {
+		// lines, the open line and two arrays of references to lines
+		return memoryUsage + ARRAY_OVERHEAD * 4 + openText.length * 2 + openRuns.length * 4 + texts.length * 8;
+	}
+
+	/**
+	 * Append text to the last line, new line chars terminate lines.
+	 *
+	 * @param text
+	 *            text
+	 * @param className
+	 *            CSS class names or null
+	 */
+	void append(final String text, final String className) {
+		if (text == null || maxLines == 0) {
+			return;
+		}
+		final int style = className != null && className.length() > 0 ? getStyleIndex(className) : -1;
+		int start = 0;
+		int end;
+		while ((end = text.indexOf('\n', start)) >= 0) {
+			appendWrapped(text, start, end, style);
+			newLine();
+			start = end + 1;
+		}
+		appendWrapped(text, start, text.length(), style);
+	}
+
+	private void appendWrapped(final String text, int start, final int end, final int style) {
+		while (end - start > MAX_LINE_LENGTH - openLength) {
+			final int split = start + MAX_LINE_LENGTH - openLength;
+			appendRun(text, start, split, style);
+			newLine();
+			start = split;
+		}
+		appendRun(text, start, end, style);
+	}
+
+	/**
+	 * Terminate the last line.
+	 */
+	void newLine() {
+		if (maxLines == 0) {
+			return;
+		}
+		final char[] text = openLength > 0 ? new char[openLength] : NO_CHARS;
+		System.arraycopy(openText, 0, text, 0, openLength);
+		int[] lineRuns = null;
+		if (hasOpenStyles) {
+			lineRuns = new int[openRunsLength];
+			System.arraycopy(openRuns, 0, lineRuns, 0, openRunsLength);
+		}
+		openLength = 0;
+		openRunsLength = 0;
+		hasOpenStyles = false;
+		addLine(text, lineRuns);
+	}
+
+	/**
+	 * Terminate the last line if it is not empty.
+	 */
+	void newLineIfNotEmpty() {
+		if (!isOpenLineEmpty()) {
+			newLine();
+		}
+	}
+
+	/**
+	 * Remove all lines.
+	 */
+	void clear() {
+		for (int i = 0; i < size; i++) {
+			final int index = (head + i) % texts.length;
+			texts[index] = null;
+			runs[index] = null;
+		}
+		firstLineNumber += getLineCount();
+		head = 0;
+		size = 0;
+		memoryUsage = 0;
+		openLength = 0;
+		openRunsLength = 0;
+		hasOpenStyles = false;
+		styles.clear();
+		styleIndexes.clear();
+	}
+
+	private boolean isOpenLineEmpty() {
+		return openLength == 0;
+	}
+
+	/**
+	 * @return index in ring or -1 for the open line
+	 */
+	private int getIndex(final long lineNumber) {
+		if (lineNumber < firstLineNumber || lineNumber >= getEndLineNumber()) {
+			throw new IndexOutOfBoundsException("Line " + lineNumber + " is not in [" + firstLineNumber + ", " + getEndLineNumber() + ")");
+		}
+		final long offset = lineNumber - firstLineNumber;
+		if (offset == size) {
+			return -1;
+		}
+		return (int) ((head + offset) % texts.length);
+	}
+
+	private int getStyleIndex(final String className) {
+		Integer index = styleIndexes.get(className);
+		if (index == null) {
+			index = styles.size();
+			styles.add(className);
+			styleIndexes.put(className, index);
+		}
+		return index;
+	}
+
+	private void appendRun(final String text, final int start, final int end, final int style) {
+		if (start == end) {
+			return;
+		}
+		final int length = end - start;
+		if (openLength + length > openText.length) {
+			final char[] newText = new char[Math.max(openText.length * 2, openLength + length)];
+			System.arraycopy(openText, 0, newText, 0, openLength);
+			openText = newText;
+		}
+		text.getChars(start, end, openText, openLength);
+		openLength += length;
+		if (style >= 0) {
+			hasOpenStyles = true;
+		}
+		if (openRunsLength > 0 && openRuns[openRunsLength - 1] == style) {
+			openRuns[openRunsLength - 2] = openLength;
+			return;
+		}
+		if (openRunsLength + 2 > openRuns.length) {
+			final int[] newRuns = new int[openRuns.length * 2];
+			System.arraycopy(openRuns, 0, newRuns, 0, openRunsLength);
+			openRuns = newRuns;
+		}
+		openRuns[openRunsLength++] = openLength;
+		openRuns[openRunsLength++] = style;
+	}
+
+	private void addLine(final char[] text, final int[] lineRuns) {
+		if (size == maxLines) {
+			removeFirst();
+		}
+		if (size == texts.length) {
+			grow();
+		}
+		final int index = (head + size) % texts.length;
+		texts[index] = text;
+		runs[index] = lineRuns;
+		size++;
+		memoryUsage += getLineMemoryUsage(text, lineRuns);
+	}
+
+	private void removeFirst() {
+		memoryUsage -= getLineMemoryUsage(texts[head], runs[head]);
+		texts[head] = null;
+		runs[head] = null;
+		head = (head + 1) % texts.length;
+		size--;
+		firstLineNumber++;
+	}
+
+	private void grow() {
+		final int capacity = Math.min(texts.length * 2, maxLines);
+		final char[][] newTexts = new char[capacity][];
+		final int[][] newRuns = new int[capacity][];
+		for (int i = 0; i < size; i++) {
+			newTexts[i] = texts[(head + i) % texts.length];
+			newRuns[i] = runs[(head + i) % texts.length];
+		}
+		texts = newTexts;
+		runs = newRuns;
+		head = 0;
+	}
+
+	private static long getLineMemoryUsage(final char[] text, final int[] lineRuns) {
+		long usage = text.length > 0 ? ARRAY_OVERHEAD + text.length * 2 : 0;
+		if (lineRuns != null) {
+			usage += ARRAY_OVERHEAD + lineRuns.length * 4;
+		}
+		return usage;
+	}
+
+	private static int indexOf(final char[] source, final int length, final String text) {
+		final int last = length - text.length();
+		outer: for (int i = 0; i <= last; i++) {
+			for (int j = 0; j < text.length(); j++) {
+				if (source[i + j] != text.charAt(j)) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+}
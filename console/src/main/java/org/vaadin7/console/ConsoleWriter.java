@@ -0,0 +1,134 @@
+package org.vaadin7.console;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Buffered writer to the {@link Console}. Text is collected in a bounded
+ * buffer and printed to the console when a line is completed, when the buffer
+ * is full or on {@link #flush()}.
+ *
+ * Writer can be used from any thread. Text is printed through
+ * {@link Console#getOutputSink()}, so the writing thread is never blocked by
+ * the session lock.
+ *
+ * @author indvdum (gotoindvdum[at]gmail[dot]com)
+ * @since 18.10.2026 16:48:12
+ *
+ */
+public class ConsoleWriter extends Writer {
+
+	/**
+	 * Default size of buffer in chars.
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	private final ConsoleOutputSink sink;
+	private final char[] buffer;
+	private int length;
+
+	public ConsoleWriter(final Console console) {
+		this(console, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param console
+	 *            console to print to
+	 * @param bufferSize
+	 *            max count of chars collected before printing
+	 */
+	public ConsoleWriter(final Console console, final int bufferSize) {
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException("Buffer size must be positive");
+		}
+		sink = console.getOutputSink();
+		buffer = new char[bufferSize];
+	}
+
+	@Override
+	public void write(final char[] cbuf, int off, int len) throws IOException {
+		synchronized (lock) {
+			boolean isLineCompleted = false;
+			while (len > 0) {
+				final int count = Math.min(len, buffer.length - length);
+				System.arraycopy(cbuf, off, buffer, length, count);
+				isLineCompleted |= appended(count);
+				off += count;
+				len -= count;
+			}
+			if (isLineCompleted) {
+				flushBuffer();
+			}
+		}
+	}
+
+	@Override
+	public void write(final String str, int off, int len) throws IOException {
+		synchronized (lock) {
+			boolean isLineCompleted = false;
+			while (len > 0) {
+				final int count = Math.min(len, buffer.length - length);
+				str.getChars(off, off + count, buffer, length);
+				isLineCompleted |= appended(count);
+				off += count;
+				len -= count;
+			}
+			if (isLineCompleted) {
+				flushBuffer();
+			}
+		}
+	}
+
+	/**
+	 * Count chars copied to the end of buffer, the full buffer is printed.
+	 *
+	 * @return true if the chars complete a line
+	 */
+	private boolean appended(final int count) {
+		boolean isLineCompleted = false;
+		for (int i = length; i < length + count; i++) {
+			final char c = buffer[i];
+			if (c == '\n' || c == '\r') {
+				isLineCompleted = true;
+			}
+		}
+		length += count;
+		if (length == buffer.length) {
+			flushBuffer();
+		}
+		return isLineCompleted;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		synchronized (lock) {
+			flushBuffer();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+	}
+
+	private void flushBuffer() {
+		if (length == 0) {
+			return;
+		}
+		final String text = new String(buffer, 0, length);
+		length = 0;
+		// Called under the lock of writer to keep the order of texts
+		print(text);
+	}
+
+	/**
+	 * Print text to console through its {@link ConsoleOutputSink}.
+	 *
+	 * @param text
+	 *            text to print
+	 */
+	protected void print(final String text) {
+		sink.print(text);
+	}
+
+}
@@ -1,7 +1,8 @@
 package org.vaadin7.console;
 
-import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeoutException;
 
 import org.vaadin7.console.Console.Command;
 import org.vaadin7.console.Console.Handler;
@@ -15,6 +16,11 @@ public class DefaultConsoleHandler implements Handler {
 	private static final long serialVersionUID = 1L;
 
 	public void handleException(final Console console, final Exception e, final Command cmd, final String[] argv) {
+		if (e instanceof CancellationException || e instanceof TimeoutException) {
+			// Cancelled by the user or by timeout
+			console.println(e.getMessage());
+			return;
+		}
 		e.printStackTrace();
 		console.println(e.getClass().getSimpleName() + ": " + e.getMessage());
 	}
@@ -23,14 +29,7 @@ public class DefaultConsoleHandler implements Handler {
 
 		final String prefix = console.parseCommandPrefix(input);
 		if (prefix != null) {
-			final Set<String> matches = new HashSet<String>();
-			final Set<String> cmds = console.getCommands();
-			for (final String cmd : cmds) {
-				if (cmd.startsWith(prefix)) {
-					matches.add(cmd);
-				}
-			}
-			return matches;
+			return console.getCommands(prefix);
 		}
 		return null;
 	}
@@ -0,0 +1,211 @@
+package org.vaadin7.console;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.vaadin7.console.client.ConsoleFrame;
+
+/**
+ * Collects console output operations until they are sent to the client as a
+ * single frame. Consecutive appends with the same CSS class are merged into
+ * one operation. CSS class names are sent once, later frames refer to them by
+ * ids.
+ *
+ * @author indvdum (gotoindvdum[at]gmail[dot]com)
+ * @since 18.10.2026 12:24:10
+ *
+ */
+class OutputFrame implements Serializable {
+
+	private static final long serialVersionUID = 3207715283946124071L;
+
+	private final StringBuilder ops = new StringBuilder();
+	private final List<String> args = new ArrayList<String>();
+	/**
+	 * Text of the last operation if it still can be continued by append.
+	 */
+	private StringBuilder tail;
+	/**
+	 * Ids of CSS class names already sent to the client.
+	 */
+	private final Map<String, Integer> classIds = new HashMap<String, Integer>();
+
+	/**
+	 * Frame in the compact form sent to the client. All texts are packed in
+	 * one string, text args are their end offsets in it, class args are ids
+	 * in the class dictionary of the client and number args are numbers.
+	 */
+	static class Encoded {
+
+		final String ops;
+		final String text;
+		final int[] args;
+		/**
+		 * Class names added to the dictionary by this frame, their ids follow
+		 * the ids of already sent names.
+		 */
+		final String[] classNames;
+
+		Encoded(final String ops, final String text, final int[] args, final String[] classNames) {
+			this.ops = ops;
+			this.text = text;
+			this.args = args;
+			this.classNames = classNames;
+		}
+
+	}
+
+	public boolean isEmpty() {
+		return ops.length() == 0;
+	}
+
+	public void print(final String text) {
+		closeTail();
+		ops.append(ConsoleFrame.PRINT);
+		openTail(text);
+	}
+
+	public void print(final String text, final String className) {
+		closeTail();
+		ops.append(ConsoleFrame.PRINT_WITH_CLASS);
+		openTail(text);
+		args.add(className);
+	}
+
+	public void append(final String text) {
+		if (tail != null && isLastOp(ConsoleFrame.PRINT, ConsoleFrame.APPEND)) {
+			if (text != null) {
+				tail.append(text);
+			}
+			return;
+		}
+		closeTail();
+		ops.append(ConsoleFrame.APPEND);
+		openTail(text);
+	}
+
+	public void append(final String text, final String className) {
+		if (tail != null && isLastOp(ConsoleFrame.PRINT_WITH_CLASS, ConsoleFrame.APPEND_WITH_CLASS)
+				&& className.equals(args.get(args.size() - 1))) {
+			if (text != null) {
+				tail.append(text);
+			}
+			return;
+		}
+		closeTail();
+		ops.append(ConsoleFrame.APPEND_WITH_CLASS);
+		openTail(text);
+		args.add(className);
+	}
+
+	public void op(final char op) {
+		closeTail();
+		ops.append(op);
+	}
+
+	public void op(final char op, final String arg) {
+		closeTail();
+		ops.append(op);
+		args.add(arg);
+	}
+
+	public void op(final char op, final String arg1, final String arg2) {
+		closeTail();
+		ops.append(op);
+		args.add(arg1);
+		args.add(arg2);
+	}
+
+	public String getOps() {
+		return ops.toString();
+	}
+
+	public String[] getArgs() {
+		closeTail();
+		return args.toArray(new String[args.size()]);
+	}
+
+	/**
+	 * @return frame in the compact form, new class names are added to the
+	 *         dictionary
+	 */
+	public Encoded encode() {
+		final String[] args = getArgs();
+		final StringBuilder text = new StringBuilder();
+		final int[] encodedArgs = new int[args.length];
+		final List<String> classNames = new ArrayList<String>();
+		int arg = 0;
+		for (int i = 0; i < ops.length(); i++) {
+			final char op = ops.charAt(i);
+			final int count = ConsoleFrame.getArgsCount(op);
+			for (int j = 0; j < count; j++, arg++) {
+				switch (ConsoleFrame.getArgType(op, j)) {
+				case ConsoleFrame.TEXT_ARG:
+					if (args[arg] != null) {
+						text.append(args[arg]);
+					}
+					encodedArgs[arg] = text.length();
+					break;
+				case ConsoleFrame.CLASS_ARG:
+					encodedArgs[arg] = getClassId(args[arg], classNames);
+					break;
+				default:
+					encodedArgs[arg] = Integer.parseInt(args[arg]);
+					break;
+				}
+			}
+		}
+		return new Encoded(getOps(), text.toString(), encodedArgs, classNames.toArray(new String[classNames.size()]));
+	}
+
+	/**
+	 * Forget class names sent to the client, they are sent again. Must be
+	 * called when the client starts with an empty dictionary.
+	 */
+	public void resetClassNames() {
+		classIds.clear();
+	}
+
+	public void clear() {
+		ops.setLength(0);
+		args.clear();
+		tail = null;
+	}
+
+	private int getClassId(final String className, final List<String> newClassNames) {
+		if (className == null) {
+			return -1;
+		}
+		Integer id = classIds.get(className);
+		if (id == null) {
+			id = classIds.size();
+			classIds.put(className, id);
+			newClassNames.add(className);
+		}
+		return id;
+	}
+
+	private boolean isLastOp(final char op1, final char op2) {
+		final char last = ops.charAt(ops.length() - 1);
+		return last == op1 || last == op2;
+	}
+
+	private void openTail(final String text) {
+		tail = new StringBuilder(text != null ? text : "");
+		// placeholder, replaced by the text of tail when tail is closed
+		args.add(null);
+	}
+
+	private void closeTail() {
+		if (tail == null) {
+			return;
+		}
+		final int textIndex = args.size() - ConsoleFrame.getArgsCount(ops.charAt(ops.length() - 1));
+		args.set(textIndex, tail.toString());
+		tail = null;
+	}
+
+}
@@ -0,0 +1,485 @@
+package org.vaadin7.console.ansi;
+
+import java.io.Serializable;
+
+/**
+ * Incremental parser for output with ANSI escape sequences. Each character is
+ * scanned once, text between escape sequences is emitted as styled runs.
+ * Carriage return, backspace and non-SGR control sequences are passed to the
+ * listener to be interpreted.
+ *
+ * Parser keeps its state between calls, so escape sequence can be split
+ * between two calls of {@link #parse(String, Listener)}, and SGR attributes
+ * (colors, bold, etc.) persist until they are reset.
+ *
+ * @author indvdum (gotoindvdum[at]gmail[dot]com)
+ * @since 18.10.2026 13:05:52
+ *
+ */
+public class ANSIStreamParser implements Serializable {
+
+	private static final long serialVersionUID = -2958105838442377452L;
+
+	/**
+	 * Receiver of parsed output.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called for every run of text with the same style.
+		 *
+		 * @param text
+		 *            text without escape sequences
+		 * @param cssClasses
+		 *            CSS classes separated by spaces, empty string if text has
+		 *            no style
+		 */
+		void text(String text, String cssClasses);
+
+		/**
+		 * Called for carriage return and backspace characters.
+		 *
+		 * @param c
+		 *            control character
+		 */
+		void control(char c);
+
+		/**
+		 * Called for every control sequence except SGR, for example cursor
+		 * movement or erasing.
+		 *
+		 * @param command
+		 *            final character of sequence
+		 * @param params
+		 *            numeric parameters, -1 for omitted parameter
+		 * @param count
+		 *            count of parameters
+		 */
+		void sequence(char command, int[] params, int count);
+
+	}
+
+	private static final char ESC = '\033';
+	private static final char BEL = '\007';
+	private static final char CR = '\r';
+	private static final char BS = '\b';
+
+	private static final int STATE_TEXT = 0;
+	private static final int STATE_ESC = 1;
+	private static final int STATE_ESC_INTERMEDIATE = 2;
+	private static final int STATE_CSI = 3;
+	private static final int STATE_OSC = 4;
+	private static final int STATE_OSC_ESC = 5;
+
+	private static final int MAX_PARAMS = 32;
+	/**
+	 * Max value of a parameter, larger values are replaced with it.
+	 */
+	public static final int MAX_PARAM_VALUE = 99999;
+
+	private static final int COLOR_DEFAULT = 0;
+	private static final int COLOR_CODE = 1;
+	private static final int COLOR_PALETTE = 2;
+	private static final int COLOR_RGB = 3;
+
+	/**
+	 * Size of direct-mapped cache of resolved SGR states, power of two.
+	 */
+	private static final int STYLE_CACHE_SIZE = 64;
+
+	private ANSICodeConverter converter;
+
+	private int state = STATE_TEXT;
+	private final int[] params = new int[MAX_PARAMS];
+	private int paramsCount;
+	private boolean paramStarted;
+	private boolean privateSequence;
+
+	// SGR state: attribute codes 0-127 as bits, colors separately
+	private long attributesLow;
+	private long attributesHigh;
+	private int fgType = COLOR_DEFAULT;
+	private int fgValue;
+	private int bgType = COLOR_DEFAULT;
+	private int bgValue;
+	private String cssClasses = "";
+	private boolean isStyleChanged = false;
+
+	private final StringBuilder sequence = new StringBuilder();
+
+	// Resolved CSS classes of recently used SGR states
+	private final long[] cachedAttributesLow = new long[STYLE_CACHE_SIZE];
+	private final long[] cachedAttributesHigh = new long[STYLE_CACHE_SIZE];
+	private final int[] cachedFg = new int[STYLE_CACHE_SIZE];
+	private final int[] cachedBg = new int[STYLE_CACHE_SIZE];
+	private final String[] cachedCSSClasses = new String[STYLE_CACHE_SIZE];
+
+	public ANSIStreamParser(ANSICodeConverter converter) {
+		setConverter(converter);
+	}
+
+	public ANSICodeConverter getConverter() {
+		return converter;
+	}
+
+	public void setConverter(ANSICodeConverter converter) {
+		this.converter = converter != null ? converter : new DefaultANSICodeConverter();
+		for (int i = 0; i < STYLE_CACHE_SIZE; i++) {
+			cachedCSSClasses[i] = null;
+		}
+		isStyleChanged = true;
+	}
+
+	/**
+	 * Reset parser state and all SGR attributes.
+	 */
+	public void reset() {
+		state = STATE_TEXT;
+		paramsCount = 0;
+		paramStarted = false;
+		privateSequence = false;
+		resetStyle();
+	}
+
+	/**
+	 * Parse next part of output.
+	 *
+	 * @param output
+	 *            output, possibly with incomplete escape sequence at the end
+	 * @param listener
+	 *            receiver of styled text runs
+	 */
+	public void parse(final String output, final Listener listener) {
+		if (output == null) {
+			return;
+		}
+		final int length = output.length();
+		int i = 0;
+		while (i < length) {
+			if (state == STATE_TEXT) {
+				int end = i;
+				char c = 0;
+				while (end < length) {
+					c = output.charAt(end);
+					if (c == ESC || c == CR || c == BS) {
+						break;
+					}
+					end++;
+				}
+				if (end > i) {
+					listener.text(output.substring(i, end), getCSSClasses());
+				}
+				if (end < length) {
+					if (c == ESC) {
+						state = STATE_ESC;
+					} else {
+						listener.control(c);
+					}
+				}
+				i = end + 1;
+				continue;
+			}
+			final char c = output.charAt(i++);
+			switch (state) {
+			case STATE_ESC:
+				if (c == '[') {
+					startSequence();
+					state = STATE_CSI;
+				} else if (c == ']') {
+					state = STATE_OSC;
+				} else if (c >= 0x20 && c <= 0x2f) {
+					state = STATE_ESC_INTERMEDIATE;
+				} else if (c >= 0x30 && c <= 0x7e) {
+					state = STATE_TEXT;
+				} else {
+					// Not an escape sequence, keep the char
+					state = STATE_TEXT;
+					i--;
+				}
+				break;
+			case STATE_ESC_INTERMEDIATE:
+				if (c >= 0x30 && c <= 0x7e) {
+					state = STATE_TEXT;
+				}
+				break;
+			case STATE_CSI:
+				if (c >= '0' && c <= '9') {
+					if (paramsCount < MAX_PARAMS) {
+						if (!paramStarted) {
+							params[paramsCount] = 0;
+							paramStarted = true;
+						}
+						// Saturated, so long digit runs cannot overflow
+						params[paramsCount] = Math.min(params[paramsCount] * 10 + (c - '0'), MAX_PARAM_VALUE);
+					}
+				} else if (c == ';' || c == ':') {
+					endParam();
+				} else if (c >= 0x3c && c <= 0x3f) {
+					privateSequence = true;
+				} else if (c >= 0x40 && c <= 0x7e) {
+					endParam();
+					state = STATE_TEXT;
+					if (!privateSequence) {
+						handleSequence(c, listener);
+					}
+				} else if (c < 0x20 || c > 0x2f) {
+					// Malformed sequence
+					state = STATE_TEXT;
+				}
+				break;
+			case STATE_OSC:
+				if (c == BEL) {
+					state = STATE_TEXT;
+				} else if (c == ESC) {
+					state = STATE_OSC_ESC;
+				}
+				break;
+			case STATE_OSC_ESC:
+				state = c == '\\' ? STATE_TEXT : STATE_OSC;
+				break;
+			default:
+				state = STATE_TEXT;
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return CSS classes of the current SGR state
+	 */
+	public String getCSSClasses() {
+		if (isStyleChanged) {
+			cssClasses = resolveCSSClasses();
+			isStyleChanged = false;
+		}
+		return cssClasses;
+	}
+
+	private void startSequence() {
+		paramsCount = 0;
+		paramStarted = false;
+		privateSequence = false;
+	}
+
+	private void endParam() {
+		if (paramsCount < MAX_PARAMS) {
+			if (!paramStarted) {
+				params[paramsCount] = -1;
+			}
+			paramsCount++;
+		}
+		paramStarted = false;
+	}
+
+	/**
+	 * Handle complete control sequence.
+	 *
+	 * @param command
+	 *            final byte of sequence
+	 * @param listener
+	 *            receiver of non-SGR sequences
+	 */
+	protected void handleSequence(final char command, final Listener listener) {
+		if (command == 'm') {
+			applySGR();
+		} else {
+			listener.sequence(command, params, paramsCount);
+		}
+	}
+
+	private void applySGR() {
+		for (int i = 0; i < paramsCount; i++) {
+			final int code = params[i] < 0 ? 0 : params[i];
+			if (code == 0) {
+				resetStyle();
+			} else if (code == 38 || code == 48) {
+				i = applyExtendedColor(code, i);
+			} else if ((code >= 30 && code <= 37) || (code >= 90 && code <= 97)) {
+				setForeground(COLOR_CODE, code);
+			} else if (code == 39) {
+				setForeground(COLOR_DEFAULT, 0);
+			} else if ((code >= 40 && code <= 47) || (code >= 100 && code <= 107)) {
+				setBackground(COLOR_CODE, code);
+			} else if (code == 49) {
+				setBackground(COLOR_DEFAULT, 0);
+			} else if (code == 21 || code == 22) {
+				clearAttributes(1, 2);
+			} else if (code == 23) {
+				clearAttributes(3);
+			} else if (code == 24) {
+				clearAttributes(4, 21);
+			} else if (code == 25) {
+				clearAttributes(5, 6);
+			} else if (code == 27) {
+				clearAttributes(7);
+			} else if (code == 28) {
+				clearAttributes(8);
+			} else if (code == 29) {
+				clearAttributes(9);
+			} else if (code == 54) {
+				clearAttributes(51, 52);
+			} else if (code == 55) {
+				clearAttributes(53);
+			} else if (code < 128) {
+				setAttribute(code);
+			}
+		}
+	}
+
+	private int applyExtendedColor(final int code, int i) {
+		final int mode = i + 1 < paramsCount ? params[i + 1] : -1;
+		if (mode == 5 && i + 2 < paramsCount) {
+			final int index = params[i + 2];
+			if (index >= 0 && index <= 255) {
+				setColor(code, COLOR_PALETTE, index);
+			}
+			return i + 2;
+		} else if (mode == 2 && i + 4 < paramsCount) {
+			final int r = clampColor(params[i + 2]);
+			final int g = clampColor(params[i + 3]);
+			final int b = clampColor(params[i + 4]);
+			setColor(code, COLOR_RGB, (r << 16) | (g << 8) | b);
+			return i + 4;
+		}
+		// Incomplete extended color, skip the rest of sequence
+		return paramsCount;
+	}
+
+	private static int clampColor(final int c) {
+		return c < 0 ? 0 : (c > 255 ? 255 : c);
+	}
+
+	private void setColor(final int code, final int type, final int value) {
+		if (code == 38) {
+			setForeground(type, value);
+		} else {
+			setBackground(type, value);
+		}
+	}
+
+	private void setForeground(final int type, final int value) {
+		if (fgType != type || fgValue != value) {
+			fgType = type;
+			fgValue = value;
+			isStyleChanged = true;
+		}
+	}
+
+	private void setBackground(final int type, final int value) {
+		if (bgType != type || bgValue != value) {
+			bgType = type;
+			bgValue = value;
+			isStyleChanged = true;
+		}
+	}
+
+	private void setAttribute(final int code) {
+		if (code < 64) {
+			final long bit = 1L << code;
+			if ((attributesLow & bit) == 0) {
+				attributesLow |= bit;
+				isStyleChanged = true;
+			}
+		} else {
+			final long bit = 1L << (code - 64);
+			if ((attributesHigh & bit) == 0) {
+				attributesHigh |= bit;
+				isStyleChanged = true;
+			}
+		}
+	}
+
+	private void clearAttributes(final int... codes) {
+		for (final int code : codes) {
+			if (code < 64) {
+				final long bit = 1L << code;
+				if ((attributesLow & bit) != 0) {
+					attributesLow &= ~bit;
+					isStyleChanged = true;
+				}
+			} else {
+				final long bit = 1L << (code - 64);
+				if ((attributesHigh & bit) != 0) {
+					attributesHigh &= ~bit;
+					isStyleChanged = true;
+				}
+			}
+		}
+	}
+
+	private void resetStyle() {
+		if (attributesLow != 0 || attributesHigh != 0 || fgType != COLOR_DEFAULT || bgType != COLOR_DEFAULT) {
+			attributesLow = 0;
+			attributesHigh = 0;
+			fgType = COLOR_DEFAULT;
+			fgValue = 0;
+			bgType = COLOR_DEFAULT;
+			bgValue = 0;
+			isStyleChanged = true;
+		}
+	}
+
+	/**
+	 * Find CSS classes of the current state in cache or resolve them.
+	 */
+	private String resolveCSSClasses() {
+		if (attributesLow == 0 && attributesHigh == 0 && fgType == COLOR_DEFAULT && bgType == COLOR_DEFAULT) {
+			return "";
+		}
+		final int fg = (fgType << 24) | fgValue;
+		final int bg = (bgType << 24) | bgValue;
+		long hash = attributesLow * 31 + attributesHigh;
+		hash = hash * 31 + fg;
+		hash = hash * 31 + bg;
+		final int index = (int) (hash ^ (hash >>> 32) ^ (hash >>> 16)) & (STYLE_CACHE_SIZE - 1);
+		if (cachedCSSClasses[index] != null && cachedAttributesLow[index] == attributesLow && cachedAttributesHigh[index] == attributesHigh
+				&& cachedFg[index] == fg && cachedBg[index] == bg) {
+			return cachedCSSClasses[index];
+		}
+		final String classes = convertCurrentStyle();
+		cachedAttributesLow[index] = attributesLow;
+		cachedAttributesHigh[index] = attributesHigh;
+		cachedFg[index] = fg;
+		cachedBg[index] = bg;
+		cachedCSSClasses[index] = classes;
+		return classes;
+	}
+
+	/**
+	 * Build normalized SGR sequence for the current state and convert it to
+	 * CSS classes.
+	 */
+	private String convertCurrentStyle() {
+		sequence.setLength(0);
+		sequence.append(ESC).append('[');
+		for (int code = 1; code < 128; code++) {
+			final long bits = code < 64 ? attributesLow : attributesHigh;
+			if ((bits & (1L << (code & 63))) != 0) {
+				sequence.append(code).append(';');
+			}
+		}
+		appendColor(38, fgType, fgValue);
+		appendColor(48, bgType, bgValue);
+		sequence.setCharAt(sequence.length() - 1, 'm');
+		final String classes = converter.convertANSIToCSS(sequence.toString());
+		return classes != null ? classes : "";
+	}
+
+	private void appendColor(final int extendedCode, final int type, final int value) {
+		switch (type) {
+		case COLOR_CODE:
+			sequence.append(value).append(';');
+			break;
+		case COLOR_PALETTE:
+			sequence.append(extendedCode).append(";5;").append(value).append(';');
+			break;
+		case COLOR_RGB:
+			sequence.append(extendedCode).append(";2;").append((value >> 16) & 0xff).append(';').append((value >> 8) & 0xff).append(';')
+					.append(value & 0xff).append(';');
+			break;
+		default:
+			break;
+		}
+	}
+
+}
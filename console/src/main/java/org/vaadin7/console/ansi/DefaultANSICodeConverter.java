@@ -1,19 +1,36 @@
 package org.vaadin7.console.ansi;
 
+import java.io.Serializable;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Default converter for numeric-only ANSI codes. 
  * 
+ * Codes are resolved through a lookup table, converted escape sequences are
+ * cached, so repeated sequences are converted without allocations. xterm-256
+ * colors are converted to a fixed set of palette classes, 24-bit colors are
+ * quantized to the nearest palette color.
+ *
  * @author indvdum
  * 31.05.2011 13:55:47
  *
  */
-public class DefaultANSICodeConverter implements ANSICodeConverter {
-	
+public class DefaultANSICodeConverter implements ANSICodeConverter, Serializable {
+
+	private static final long serialVersionUID = -3346853738452466020L;
+
+	/**
+	 * Max count of cached escape sequences.
+	 */
+	public static final int CACHE_SIZE = 512;
+
+	/**
+	 * Codes 0-107 are resolved through lookup table.
+	 */
+	protected static final int MAX_TABLE_CODE = 107;
+
 	protected static final Map<Integer, String> ANSI_CSS = new HashMap<Integer, String>();
 	static{
 		ANSI_CSS.put(0, "");
@@ -53,43 +70,247 @@ public class DefaultANSICodeConverter implements ANSICodeConverter {
 		
 		ANSI_CSS.put(53, "term-text-decoration-overline");
 		ANSI_CSS.put(55, "term-text-decoration-none");
+		
+		ANSI_CSS.put(90, "term-color-gray");
+		ANSI_CSS.put(91, "term-color-red");
+		ANSI_CSS.put(92, "term-color-lime");
+		ANSI_CSS.put(93, "term-color-yellow");
+		ANSI_CSS.put(94, "term-color-blue");
+		ANSI_CSS.put(95, "term-color-fuchsia");
+		ANSI_CSS.put(96, "term-color-aqua");
+		ANSI_CSS.put(97, "term-color-white");
+		
+		ANSI_CSS.put(100, "term-background-color-gray");
+		ANSI_CSS.put(101, "term-background-color-red");
+		ANSI_CSS.put(102, "term-background-color-lime");
+		ANSI_CSS.put(103, "term-background-color-yellow");
+		ANSI_CSS.put(104, "term-background-color-blue");
+		ANSI_CSS.put(105, "term-background-color-fuchsia");
+		ANSI_CSS.put(106, "term-background-color-aqua");
+		ANSI_CSS.put(107, "term-background-color-white");
 	}
-	
+
+	/**
+	 * Levels of red, green and blue components in 6x6x6 color cube of
+	 * xterm-256 palette (indexes 16-231).
+	 */
+	private static final int[] CUBE_LEVELS = { 0, 95, 135, 175, 215, 255 };
+
+	/**
+	 * Nearest cube level for every value of color component.
+	 */
+	private static final byte[] CUBE_INDEX = new byte[256];
+
+	/**
+	 * RGB values of xterm-256 palette.
+	 */
+	protected static final int[] PALETTE_RGB = new int[256];
+
+	private static final String[] PALETTE_COLOR_CSS = new String[256];
+	private static final String[] PALETTE_BACKGROUND_COLOR_CSS = new String[256];
+	static {
+		for (int v = 0, level = 0; v < 256; v++) {
+			if (level < CUBE_LEVELS.length - 1 && v - CUBE_LEVELS[level] > CUBE_LEVELS[level + 1] - v)
+				level++;
+			CUBE_INDEX[v] = (byte) level;
+		}
+		// Standard colors are resolved through codes 30-37 and 90-97
+		for (int i = 0; i < 16; i++) {
+			PALETTE_RGB[i] = -1;
+		}
+		for (int i = 16; i < 232; i++) {
+			final int n = i - 16;
+			PALETTE_RGB[i] = (CUBE_LEVELS[n / 36] << 16) | (CUBE_LEVELS[(n / 6) % 6] << 8) | CUBE_LEVELS[n % 6];
+		}
+		for (int i = 232; i < 256; i++) {
+			final int gray = 8 + (i - 232) * 10;
+			PALETTE_RGB[i] = (gray << 16) | (gray << 8) | gray;
+		}
+		for (int i = 0; i < 256; i++) {
+			PALETTE_COLOR_CSS[i] = ("term-color-256-" + i).intern();
+			PALETTE_BACKGROUND_COLOR_CSS[i] = ("term-background-color-256-" + i).intern();
+		}
+	}
+
+	/**
+	 * CSS classes of codes 0-107, filled from {@link #ANSI_CSS} after
+	 * {@link #init()}.
+	 */
+	private final String[] cssTable = new String[MAX_TABLE_CODE + 1];
+
+	private final Map<String, String> cache = new LinkedHashMap<String, String>(64, 0.75f, true) {
+
+		private static final long serialVersionUID = 5043012963711101547L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
 	public DefaultANSICodeConverter(){
 		init();
+		for (int code = 0; code <= MAX_TABLE_CODE; code++) {
+			final String cssClass = ANSI_CSS.get(code);
+			cssTable[code] = cssClass != null ? cssClass.trim().intern() : null;
+		}
 	}
-	
+
 	protected void init(){
 		
 	}
-	
+
 	@Override
 	public String convertANSIToCSS(String ansiEscapeSequence) {
-		StringBuilder cssClasses = new StringBuilder("");
-		Matcher matcher = Pattern.compile(ANSI_PATTERN).matcher(ansiEscapeSequence);
-		if(!matcher.matches())
-			return cssClasses.toString();
-		String codes[] = matcher.group(2).split(";");
-		for(int i = 0; i < codes.length; i++){
-			if(!codes[i].matches("[0-9]+")) // processing only numeric codes
-				continue;
-			int nCode = Integer.valueOf(codes[i]);
-			if(nCode == 38){ // Set xterm-256 text color, nothing to do
-				i+=2;
-				continue;
-			}
-			if(nCode == 48){ // Set xterm-256 background color, nothing to do
-				i+=2;
+		if (ansiEscapeSequence == null)
+			return "";
+		synchronized (cache) {
+			final String cached = cache.get(ansiEscapeSequence);
+			if (cached != null)
+				return cached;
+		}
+		final String cssClasses = convert(ansiEscapeSequence).intern();
+		synchronized (cache) {
+			cache.put(ansiEscapeSequence, cssClasses);
+		}
+		return cssClasses;
+	}
+
+	/**
+	 * Convert escape sequence matching {@link ANSICodeConverter#ANSI_PATTERN}
+	 * without using regular expressions.
+	 */
+	private String convert(String ansiEscapeSequence) {
+		final int length = ansiEscapeSequence.length();
+		if (length < 4 || ansiEscapeSequence.charAt(0) != '\033' || ansiEscapeSequence.charAt(1) != '['
+				|| ansiEscapeSequence.charAt(length - 1) != 'm')
+			return "";
+		final int codes[] = parseCodes(ansiEscapeSequence);
+		if (codes == null)
+			return "";
+		StringBuilder cssClasses = new StringBuilder();
+		for (int i = 0; i < codes.length; i++) {
+			final int nCode = codes[i];
+			if (nCode < 0) // processing only numeric codes
 				continue;
+			String cssClass;
+			if (nCode == 38 || nCode == 48) {
+				// Set xterm-256 or 24-bit text or background color
+				final int mode = i + 1 < codes.length ? codes[i + 1] : -1;
+				if (mode == 5 && i + 2 < codes.length) {
+					cssClass = getPaletteCSSClass(codes[i + 2], nCode == 48);
+					i += 2;
+				} else if (mode == 2 && i + 4 < codes.length) {
+					cssClass = getRGBCSSClass(codes[i + 2], codes[i + 3], codes[i + 4], nCode == 48);
+					i += 4;
+				} else {
+					break;
+				}
+			} else {
+				cssClass = getCSSClass(nCode);
 			}
-			String cssClass = getCSSClass(nCode);
-			if(cssClass == null)
+			if (cssClass == null)
 				continue;
 			cssClass = cssClass.trim();
-			if(cssClass.length() > 0)
-				cssClasses.append(cssClass).append(" "); 
+			if (cssClass.length() > 0) {
+				if (cssClasses.length() > 0)
+					cssClasses.append(' ');
+				cssClasses.append(cssClass);
+			}
 		}
-		return cssClasses.toString().trim();
+		return cssClasses.toString();
+	}
+
+	/**
+	 * @return codes of escape sequence, -1 for empty and non-numeric codes,
+	 *         null if it is not an ANSI escape sequence
+	 */
+	private static int[] parseCodes(String ansiEscapeSequence) {
+		final int length = ansiEscapeSequence.length();
+		int count = 1;
+		for (int i = 2; i < length - 1; i++) {
+			if (ansiEscapeSequence.charAt(i) == ';')
+				count++;
+		}
+		final int codes[] = new int[count];
+		int codeStart = 2;
+		int nCode = 0;
+		boolean isNumeric = true;
+		for (int i = 2, n = 0; i < length; i++) {
+			final char c = ansiEscapeSequence.charAt(i);
+			if (c == ';' || i == length - 1) {
+				codes[n++] = i == codeStart || !isNumeric || i - codeStart > 9 ? -1 : nCode;
+				codeStart = i + 1;
+				nCode = 0;
+				isNumeric = true;
+			} else if (c >= '0' && c <= '9') {
+				nCode = nCode * 10 + (c - '0');
+			} else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+				isNumeric = false;
+			} else {
+				return null;
+			}
+		}
+		return codes;
+	}
+
+	/**
+	 * Converting xterm-256 palette color to CSS-class. Standard colors 0-15
+	 * are converted as codes 30-37 and 90-97 (40-47 and 100-107 for
+	 * background).
+	 * 
+	 * @param index
+	 *            palette index
+	 * @param background
+	 *            true for background color
+	 * @return CSS-class
+	 */
+	protected String getPaletteCSSClass(int index, boolean background) {
+		if (index < 0 || index > 255)
+			return null;
+		if (index < 16)
+			return getCSSClass((background ? 40 : 30) + (index < 8 ? index : index - 8 + 60));
+		return background ? PALETTE_BACKGROUND_COLOR_CSS[index] : PALETTE_COLOR_CSS[index];
+	}
+
+	/**
+	 * Converting 24-bit color to CSS-class. Color is quantized to the nearest
+	 * color of xterm-256 palette, so the set of CSS-classes stays bounded.
+	 * 
+	 * @param r
+	 *            red
+	 * @param g
+	 *            green
+	 * @param b
+	 *            blue
+	 * @param background
+	 *            true for background color
+	 * @return CSS-class
+	 */
+	protected String getRGBCSSClass(int r, int g, int b, boolean background) {
+		return getPaletteCSSClass(getNearestPaletteIndex(r, g, b), background);
+	}
+
+	/**
+	 * @return index of the nearest color of xterm-256 palette excluding
+	 *         standard colors 0-15
+	 */
+	protected static int getNearestPaletteIndex(int r, int g, int b) {
+		r = r < 0 ? 0 : (r > 255 ? 255 : r);
+		g = g < 0 ? 0 : (g > 255 ? 255 : g);
+		b = b < 0 ? 0 : (b > 255 ? 255 : b);
+		final int cube = 16 + 36 * CUBE_INDEX[r] + 6 * CUBE_INDEX[g] + CUBE_INDEX[b];
+		final int average = (r + g + b) / 3;
+		final int grayIndex = average < 8 ? 0 : (average > 238 ? 23 : (average - 3) / 10);
+		final int gray = 232 + grayIndex;
+		return distance(PALETTE_RGB[gray], r, g, b) < distance(PALETTE_RGB[cube], r, g, b) ? gray : cube;
+	}
+
+	private static int distance(int rgb, int r, int g, int b) {
+		final int dr = ((rgb >> 16) & 0xff) - r;
+		final int dg = ((rgb >> 8) & 0xff) - g;
+		final int db = (rgb & 0xff) - b;
+		return dr * dr + dg * dg + db * db;
 	}
 
 	/**
@@ -99,6 +320,8 @@ public class DefaultANSICodeConverter implements ANSICodeConverter {
 	 * @return CSS-class(es).
 	 */
 	protected String getCSSClass(int ansiCode) {
+		if (ansiCode >= 0 && ansiCode <= MAX_TABLE_CODE)
+			return cssTable[ansiCode];
 		return ANSI_CSS.get(ansiCode);
 	}
 
@@ -112,4 +335,14 @@ public class DefaultANSICodeConverter implements ANSICodeConverter {
 		return "";
 	}
 
+	/**
+	 * Clear cache of converted escape sequences. Should be called by
+	 * subclasses if conversion rules are changed after construction.
+	 */
+	protected void clearCache() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
 }
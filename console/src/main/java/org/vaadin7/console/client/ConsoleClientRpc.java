@@ -6,22 +6,15 @@ import com.vaadin.shared.communication.ClientRpc;
  * ClientRpc is used to pass events from server to client. For sending
  * information about the changes to component state, use State instead.
  * 
+ * Configuration setters were removed from this interface, configuration is
+ * sent in {@link ConsoleState}.
+ * 
  * @author indvdum (gotoindvdum[at]gmail[dot]com)
  * @since 22.05.2014 11:01:38
  * 
  */
 public interface ConsoleClientRpc extends ClientRpc {
 
-	public void setGreeting(String greeting);
-
-	public void setPs(String ps);
-
-	public void setWrap(boolean wrap);
-
-	public void setRows(int rows);
-
-	public void setCols(int cols);
-
 	public void print(String text);
 
 	public void printWithClass(String text, String className);
@@ -58,12 +51,20 @@ public interface ConsoleClientRpc extends ClientRpc {
 
 	public void bell();
 
-	public void setMaxBufferSize(int bufferSize);
-
 	public void clearHistory();
 
-	public void setPrintPromptOnInput(boolean printPromptOnInput);
-
-	public void setScrollLock(boolean scrollLock);
+	/**
+	 * Apply output collected on the server during one round trip.
+	 * 
+	 * @param ops
+	 *            operation codes, see {@link ConsoleFrame}
+	 * @param text
+	 *            texts of all operations
+	 * @param args
+	 *            arguments of operations
+	 * @param classNames
+	 *            CSS class names added to the dictionary
+	 */
+	public void frame(String ops, String text, int[] args, String[] classNames);
 
 }
\ No newline at end of file
@@ -5,6 +5,7 @@ import org.vaadin7.console.Console;
 import com.google.gwt.core.client.GWT;
 import com.google.gwt.event.dom.client.FocusEvent;
 import com.google.gwt.event.dom.client.FocusHandler;
+import com.google.gwt.user.client.Timer;
 import com.google.gwt.user.client.ui.Widget;
 import com.vaadin.client.annotations.OnStateChange;
 import com.vaadin.client.communication.RpcProxy;
@@ -31,67 +32,55 @@ public class ConsoleConnector extends AbstractComponentConnector implements Focu
 	// is automatically created here
 	ConsoleServerRpc rpc = RpcProxy.create(ConsoleServerRpc.class, this);
 
+	/**
+	 * Delay of viewport message in milliseconds, changes during a resize are
+	 * sent once the size settles.
+	 */
+	private static final int VIEWPORT_DELAY = 150;
+
+	private final Timer viewportTimer = new Timer() {
+
+		@Override
+		public void run() {
+			sendViewport();
+		}
+	};
+	private String sentViewport;
+
 	public ConsoleConnector() {
 
 		// To receive RPC events from server, we register ClientRpc
 		// implementation
 		registerRpc(ConsoleClientRpc.class, new ConsoleClientRpc() {
 
-			@Override
-			public void setGreeting(String greeting) {
-				getWidget().getConfig().setGreeting(greeting);
-			}
-
-			@Override
-			public void setPs(String ps) {
-				getWidget().setPs(ps);
-			}
-
-			@Override
-			public void setWrap(boolean wrap) {
-				getWidget().getConfig().setWrap(wrap);
-			}
-
-			@Override
-			public void setRows(int rows) {
-				getWidget().getConfig().setRows(rows);
-				getWidget().setRows(rows);
-			}
-
-			@Override
-			public void setCols(int cols) {
-				getWidget().getConfig().setCols(cols);
-				getWidget().setCols(cols);
-			}
-
 			@Override
 			public void print(String text) {
-				getWidget().print(text);
+				queue(ConsoleFrame.PRINT, text);
 			}
 
 			@Override
 			public void printWithClass(String text, String className) {
-				getWidget().printWithClass(text, className);
+				queue(ConsoleFrame.PRINT_WITH_CLASS, text, className);
 			}
 
 			@Override
 			public void println(String text) {
-				getWidget().println(text);
+				queue(ConsoleFrame.PRINT, text + "\n");
 			}
 
 			@Override
 			public void printlnWithClass(String text, String className) {
-				getWidget().printlnWithClass(text, className);
+				queue(ConsoleFrame.PRINT_WITH_CLASS, text + "\n", className);
 			}
 
 			@Override
 			public void append(String text) {
-				getWidget().append(text);
+				queue(ConsoleFrame.APPEND, text);
 			}
 
 			@Override
 			public void appendWithClass(String text, String className) {
-				getWidget().appendWithClass(text, className);
+				queue(ConsoleFrame.APPEND_WITH_CLASS, text, className);
 			}
 
 			@Override
@@ -106,7 +95,7 @@ public class ConsoleConnector extends AbstractComponentConnector implements Focu
 
 			@Override
 			public void ff() {
-				getWidget().formFeed();
+				queue(ConsoleFrame.FORM_FEED);
 			}
 
 			@Override
@@ -121,7 +110,7 @@ public class ConsoleConnector extends AbstractComponentConnector implements Focu
 
 			@Override
 			public void clearBuffer() {
-				getWidget().clearBuffer();
+				queue(ConsoleFrame.CLEAR_BUFFER);
 			}
 
 			@Override
@@ -131,17 +120,17 @@ public class ConsoleConnector extends AbstractComponentConnector implements Focu
 
 			@Override
 			public void newLine() {
-				getWidget().newLine();
+				queue(ConsoleFrame.NEW_LINE);
 			}
 
 			@Override
 			public void newLineIfNotEndsWithNewLine() {
-				getWidget().newLineIfNotEndsWithNewLine();
+				queue(ConsoleFrame.NEW_LINE_IF_NOT_ENDS_WITH_NEW_LINE);
 			}
 
 			@Override
 			public void scrollToEnd() {
-				getWidget().scrollToEnd();
+				queue(ConsoleFrame.SCROLL_TO_END);
 			}
 
 			@Override
@@ -154,25 +143,14 @@ public class ConsoleConnector extends AbstractComponentConnector implements Focu
 				getWidget().bell();
 			}
 
-			@Override
-			public void setMaxBufferSize(int bufferSize) {
-				getWidget().getConfig().setMaxBufferSize(bufferSize);
-				getWidget().setMaxBufferSize(bufferSize);
-			}
-
 			@Override
 			public void clearHistory() {
 				getWidget().clearCommandHistory();
 			}
 
 			@Override
-			public void setPrintPromptOnInput(boolean printPromptOnInput) {
-				getWidget().getConfig().setPrintPromptOnInput(printPromptOnInput);
-			}
-
-			@Override
-			public void setScrollLock(boolean scrollLock) {
-				getWidget().getConfig().setScrollLock(scrollLock);
+			public void frame(String ops, String text, int[] args, String[] classNames) {
+				getWidget().frame(ops, text, args, classNames);
 			}
 
 		});
@@ -189,26 +167,38 @@ public class ConsoleConnector extends AbstractComponentConnector implements Focu
 				rpc.suggest(input);
 			}
 
+			@Override
+			public void cancel() {
+				rpc.cancel();
+			}
+
 			@Override
 			public void paintableSizeChanged() {
 				notifyPaintableSizeChange();
-				rpc.setHeight(getWidget().getHeight());
-				rpc.setWidth(getWidget().getWidth());
+				viewportTimer.schedule(VIEWPORT_DELAY);
 			}
 
 			@Override
 			public void rowsChanged(int rows) {
-				rpc.setRows(rows);
+				viewportTimer.schedule(VIEWPORT_DELAY);
 			}
 
 			@Override
 			public void colsChanged(int cols) {
-				rpc.setCols(cols);
+				viewportTimer.schedule(VIEWPORT_DELAY);
 			}
 		});
 
 	}
 
+	/**
+	 * Output calls are queued as frames, so they are rendered together with
+	 * other output of the same animation frame.
+	 */
+	private void queue(final char op, final String... args) {
+		getWidget().frame(String.valueOf(op), args);
+	}
+
 	// We must implement createWidget() to create correct type of widget
 	@Override
 	protected Widget createWidget() {
@@ -233,6 +223,45 @@ public class ConsoleConnector extends AbstractComponentConnector implements Focu
 	public void onStateChanged(StateChangeEvent stateChangeEvent) {
 		// GWT.log("onStateChanged() width = " + getState().width);
 		super.onStateChanged(stateChangeEvent);
+
+		final ConsoleWidget widget = getWidget();
+		final ConsoleState state = getState();
+		final TextConsoleConfig config = widget.getConfig();
+		if (stateChangeEvent.hasPropertyChanged("greeting")) {
+			config.setGreeting(state.greeting);
+		}
+		if (stateChangeEvent.hasPropertyChanged("ps")) {
+			widget.setPs(state.ps);
+		}
+		if (stateChangeEvent.hasPropertyChanged("printPromptOnInput")) {
+			config.setPrintPromptOnInput(state.printPromptOnInput);
+		}
+		if (stateChangeEvent.hasPropertyChanged("scrollLock")) {
+			config.setScrollLock(state.scrollLock);
+		}
+		// Queued output is rendered with the previous geometry
+		if (stateChangeEvent.hasPropertyChanged("wrap")) {
+			widget.flushFrames();
+			config.setWrap(state.wrap);
+		}
+		if (stateChangeEvent.hasPropertyChanged("rows") && state.rows > 0) {
+			widget.flushFrames();
+			config.setRows(state.rows);
+			widget.setRows(state.rows);
+		}
+		if (stateChangeEvent.hasPropertyChanged("cols") && state.cols > 0) {
+			widget.flushFrames();
+			config.setCols(state.cols);
+			widget.setCols(state.cols);
+		}
+		if (stateChangeEvent.hasPropertyChanged("maxBufferSize")) {
+			widget.flushFrames();
+			config.setMaxBufferSize(state.maxBufferSize);
+			widget.setMaxBufferSize(state.maxBufferSize);
+		}
+		if (stateChangeEvent.hasPropertyChanged("virtualScrolling")) {
+			widget.setVirtualScrolling(state.virtualScrolling);
+		}
 	}
 
 	@Override
@@ -242,6 +271,26 @@ public class ConsoleConnector extends AbstractComponentConnector implements Focu
 		getRpcProxy(FocusAndBlurServerRpc.class).focus();
 	}
 
+	/**
+	 * Send rows, cols and size of the console in one message if any of them
+	 * changed since the last message.
+	 */
+	private void sendViewport() {
+		final ConsoleWidget widget = getWidget();
+		final String viewport = widget.getRows() + "x" + widget.getCols() + " " + widget.getWidth() + "x" + widget.getHeight();
+		if (viewport.equals(sentViewport)) {
+			return;
+		}
+		sentViewport = viewport;
+		rpc.viewportChanged(widget.getRows(), widget.getCols(), widget.getWidth(), widget.getHeight());
+	}
+
+	@Override
+	public void onUnregister() {
+		viewportTimer.cancel();
+		super.onUnregister();
+	}
+
 	public void notifyPaintableSizeChange() {
 		getLayoutManager().setNeedsMeasure(this);
 	}
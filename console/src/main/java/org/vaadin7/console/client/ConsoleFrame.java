@@ -0,0 +1,158 @@
+package org.vaadin7.console.client;
+
+/**
+ * Operation codes of an output frame. A frame collects all output produced on
+ * the server side during one round trip and is sent to the client as a single
+ * {@link ConsoleClientRpc#frame(String, String, int[], String[])} call. Every
+ * character of the ops string is one operation, operations consume their
+ * arguments from the args array in order.
+ *
+ * Texts of all operations are packed in one string, a text argument is the end
+ * offset of the text in it. A class argument is an id in the dictionary of CSS
+ * class names, the dictionary is extended by every frame with names which
+ * were not sent before, -1 means no class.
+ *
+ * @author indvdum (gotoindvdum[at]gmail[dot]com)
+ * @since 18.10.2026 12:10:31
+ *
+ */
+public final class ConsoleFrame {
+
+	/**
+	 * Print text. Args: text.
+	 */
+	public static final char PRINT = 'p';
+
+	/**
+	 * Print text with CSS class. Args: text, class name.
+	 */
+	public static final char PRINT_WITH_CLASS = 'P';
+
+	/**
+	 * Append text to the last printed line. Args: text.
+	 */
+	public static final char APPEND = 'a';
+
+	/**
+	 * Append text with CSS class to the last printed line. Args: text, class
+	 * name.
+	 */
+	public static final char APPEND_WITH_CLASS = 'A';
+
+	/**
+	 * New line. No args.
+	 */
+	public static final char NEW_LINE = 'n';
+
+	/**
+	 * New line only if buffer not ends with new line. No args.
+	 */
+	public static final char NEW_LINE_IF_NOT_ENDS_WITH_NEW_LINE = 'N';
+
+	/**
+	 * Form feed. No args.
+	 */
+	public static final char FORM_FEED = 'f';
+
+	/**
+	 * Clear buffer. No args.
+	 */
+	public static final char CLEAR_BUFFER = 'c';
+
+	/**
+	 * Scroll to end. No args.
+	 */
+	public static final char SCROLL_TO_END = 's';
+
+	/**
+	 * Start a new screen line at the end of buffer. Screen lines are lines
+	 * which can be changed in place later. Args: none.
+	 */
+	public static final char SCREEN_LINE = 'L';
+
+	/**
+	 * Start replacing content of a screen line. Args: position of line
+	 * counting from the last screen line, which is 1.
+	 */
+	public static final char UPDATE_SCREEN_LINE = 'U';
+
+	/**
+	 * Append text to the current screen line. Args: text.
+	 */
+	public static final char RUN = 'r';
+
+	/**
+	 * Append text with CSS class to the current screen line. Args: text, class
+	 * name.
+	 */
+	public static final char RUN_WITH_CLASS = 'R';
+
+	/**
+	 * End the current screen line with new line. No args.
+	 */
+	public static final char SCREEN_LINE_BREAK = 'b';
+
+	/**
+	 * Remove screen lines from the end of buffer. Args: count of lines.
+	 */
+	public static final char TRUNCATE_SCREEN_LINES = 'T';
+
+	/**
+	 * Argument is the end offset of text.
+	 */
+	public static final int TEXT_ARG = 0;
+
+	/**
+	 * Argument is the id of CSS class name.
+	 */
+	public static final int CLASS_ARG = 1;
+
+	/**
+	 * Argument is a number.
+	 */
+	public static final int NUMBER_ARG = 2;
+
+	private ConsoleFrame() {
+	}
+
+	/**
+	 * @param op
+	 *            operation code
+	 * @param index
+	 *            index of argument of operation
+	 * @return type of argument, {@link #TEXT_ARG}, {@link #CLASS_ARG} or
+	 *         {@link #NUMBER_ARG}
+	 */
+	public static int getArgType(final char op, final int index) {
+		switch (op) {
+		case UPDATE_SCREEN_LINE:
+		case TRUNCATE_SCREEN_LINES:
+			return NUMBER_ARG;
+		default:
+			return index == 0 ? TEXT_ARG : CLASS_ARG;
+		}
+	}
+
+	/**
+	 * @param op
+	 *            operation code
+	 * @return count of arguments consumed by operation
+	 */
+	public static int getArgsCount(final char op) {
+		switch (op) {
+		case PRINT:
+		case APPEND:
+		case UPDATE_SCREEN_LINE:
+		case RUN:
+		case TRUNCATE_SCREEN_LINES:
+			return 1;
+		case PRINT_WITH_CLASS:
+		case APPEND_WITH_CLASS:
+		case RUN_WITH_CLASS:
+			return 2;
+		default:
+			return 0;
+		}
+	}
+
+}
@@ -11,16 +11,52 @@ import com.vaadin.shared.communication.ServerRpc;
  */
 public interface ConsoleServerRpc extends ServerRpc {
 
+	/**
+	 * @deprecated use {@link #viewportChanged(int, int, String, String)}
+	 */
+	@Deprecated
 	public void setHeight(String height);
 
+	/**
+	 * @deprecated use {@link #viewportChanged(int, int, String, String)}
+	 */
+	@Deprecated
 	public void setWidth(String width);
 
+	/**
+	 * @deprecated use {@link #viewportChanged(int, int, String, String)}
+	 */
+	@Deprecated
 	public void setCols(int cols);
 
+	/**
+	 * @deprecated use {@link #viewportChanged(int, int, String, String)}
+	 */
+	@Deprecated
 	public void setRows(int rows);
 
+	/**
+	 * Rows, cols and size of the console changed on the client. Sent once
+	 * after changes settle.
+	 * 
+	 * @param rows
+	 *            count of rows
+	 * @param cols
+	 *            count of cols
+	 * @param width
+	 *            width in pixels
+	 * @param height
+	 *            height in pixels
+	 */
+	public void viewportChanged(int rows, int cols, String width, String height);
+
 	public void input(String input);
 
 	public void suggest(String input);
 
+	/**
+	 * User pressed Ctrl-C, the running command is cancelled.
+	 */
+	public void cancel();
+
 }
@@ -9,6 +9,22 @@ public class ConsoleState extends com.vaadin.shared.AbstractComponentState {
 
 	private static final long serialVersionUID = -5576147144891328552L;
 	// State can have both public variable and bean properties
-	public String text = "Console";
+	// Configuration is kept in state, so only changed fields are sent and
+	// it is restored on reattach
+	public String greeting = "Console ready.";
+	public String ps = "}> ";
+	public boolean wrap = true;
+	/**
+	 * -1 until set by server.
+	 */
+	public int rows = -1;
+	/**
+	 * -1 until set by server.
+	 */
+	public int cols = -1;
+	public int maxBufferSize = 0;
+	public boolean scrollLock = false;
+	public boolean printPromptOnInput = true;
+	public boolean virtualScrolling = false;
 
 }
\ No newline at end of file
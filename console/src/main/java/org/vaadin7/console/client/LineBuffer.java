@@ -0,0 +1,355 @@
+package org.vaadin7.console.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gwt.dom.client.Document;
+import com.google.gwt.dom.client.Element;
+import com.google.gwt.dom.client.Node;
+
+/**
+ * Buffer of {@link TextConsole} rendered as DOM. Every logical line is its own
+ * line element, style runs are its children. So the oldest line is dropped by
+ * one removal, the last line is continued by appending a child and a screen
+ * line is replaced in place without touching other lines.
+ *
+ * Long lines are wrapped by CSS. Only lengths of lines are kept, rows are
+ * counted from them, so neither output nor a resize needs layout or a new
+ * render of lines.
+ *
+ * @author indvdum (gotoindvdum[at]gmail[dot]com)
+ * @since 18.10.2026 19:42:17
+ *
+ */
+class LineBuffer {
+
+	private static final String LINE_CLASS_NAME = "ln";
+	private static final String SCREEN_LINE_CLASS_NAME = "sl";
+	/**
+	 * Property of line element, sequence number of line.
+	 */
+	private static final String SEQ_PROPERTY = "lnSeq";
+	/**
+	 * Property of screen line element, length of line before it.
+	 */
+	private static final String START_PROPERTY = "slStart";
+
+	private final Element buffer;
+	/**
+	 * The last line if it is not terminated.
+	 */
+	private Element openLine;
+	/**
+	 * Elements of screen lines in order of output.
+	 */
+	private final List<Element> screenLines = new ArrayList<Element>();
+	private Element screenLine;
+	/**
+	 * Lengths of lines, indexed by sequence number of line modulo capacity.
+	 */
+	private int[] lengths = new int[64];
+	private int firstSeq;
+	private int endSeq;
+	private int totalRows;
+	private int wrapCols = -1;
+	/**
+	 * Lines added during a batch, they are appended to the buffer at once.
+	 */
+	private Node fragment;
+
+	LineBuffer(final Element buffer) {
+		this.buffer = buffer;
+	}
+
+	/**
+	 * @param wrapCols
+	 *            count of chars in row if lines are wrapped, -1 otherwise
+	 */
+	void setWrapCols(final int wrapCols) {
+		if (wrapCols == this.wrapCols) {
+			return;
+		}
+		this.wrapCols = wrapCols;
+		totalRows = 0;
+		for (int seq = firstSeq; seq < endSeq; seq++) {
+			totalRows += getRows(lengths[seq & (lengths.length - 1)]);
+		}
+	}
+
+	/**
+	 * New lines are collected in a document fragment until
+	 * {@link #endBatch()}.
+	 */
+	void beginBatch() {
+		if (fragment == null) {
+			fragment = createDocumentFragment();
+		}
+	}
+
+	void endBatch() {
+		if (fragment != null) {
+			buffer.appendChild(fragment);
+			fragment = null;
+		}
+	}
+
+	boolean isEmpty() {
+		return endSeq == firstSeq;
+	}
+
+	boolean endsWithNewLine() {
+		return !isEmpty() && openLine == null;
+	}
+
+	int getTotalRows() {
+		return totalRows;
+	}
+
+	/**
+	 * Append style runs to the last line, new line chars terminate lines.
+	 *
+	 * @param texts
+	 *            texts of runs
+	 * @param classNames
+	 *            CSS class names of runs, null for not styled runs
+	 * @return count of added rows
+	 */
+	int appendRuns(final String[] texts, final String[] classNames) {
+		screenLines.clear();
+		screenLine = null;
+		final int rowsBefore = getTotalRows();
+		for (int i = 0; i < texts.length; i++) {
+			final String text = texts[i];
+			int s = 0, e = text.indexOf('\n');
+			while (e >= 0) {
+				final Element line = getOpenLine();
+				appendRun(line, line, text, s, e, classNames[i]);
+				newLine();
+				s = e + 1;
+				e = text.indexOf('\n', s);
+			}
+			if (s < text.length()) {
+				final Element line = getOpenLine();
+				appendRun(line, line, text, s, text.length(), classNames[i]);
+			}
+		}
+		return getTotalRows() - rowsBefore;
+	}
+
+	/**
+	 * @return count of added rows
+	 */
+	int newLine() {
+		screenLines.clear();
+		screenLine = null;
+		if (openLine != null) {
+			openLine = null;
+			return 0;
+		}
+		addLine();
+		openLine = null;
+		return 1;
+	}
+
+	/**
+	 * Start a screen line, it continues the last line if it is not terminated.
+	 *
+	 * @return count of added rows
+	 */
+	int startScreenLine() {
+		final int rowsBefore = getTotalRows();
+		screenLine = Document.get().createSpanElement();
+		screenLine.addClassName(SCREEN_LINE_CLASS_NAME);
+		final Element line = getOpenLine();
+		line.appendChild(screenLine);
+		screenLine.setPropertyInt(START_PROPERTY, getLength(line));
+		screenLines.add(screenLine);
+		return getTotalRows() - rowsBefore;
+	}
+
+	/**
+	 * Remove content of screen line, following runs replace it.
+	 *
+	 * @return count of added rows, negative if rows are removed
+	 */
+	int updateScreenLine(final int position) {
+		screenLine = null;
+		if (position < 1 || position > screenLines.size()) {
+			return 0;
+		}
+		screenLine = screenLines.get(screenLines.size() - position);
+		final Element line = screenLine.getParentElement();
+		final int rowsBefore = totalRows;
+		screenLine.removeAllChildren();
+		setLength(line, screenLine.getPropertyInt(START_PROPERTY));
+		final boolean wasTerminated = line != openLine;
+		if (line == getLastLine()) {
+			openLine = line;
+		}
+		return totalRows - rowsBefore - (wasTerminated ? 1 : 0);
+	}
+
+	/**
+	 * @return count of added rows
+	 */
+	int appendToScreenLine(final String text, final String className) {
+		if (screenLine == null) {
+			return 0;
+		}
+		final int rowsBefore = getTotalRows();
+		appendRun(screenLine.getParentElement(), screenLine, text, 0, text.length(), className);
+		return getTotalRows() - rowsBefore;
+	}
+
+	void endScreenLine() {
+		if (screenLine == null) {
+			return;
+		}
+		if (screenLine.getParentElement() == openLine) {
+			openLine = null;
+		}
+		screenLine = null;
+	}
+
+	/**
+	 * Remove screen lines from the end. Text before the first screen line
+	 * stays as the open last line.
+	 *
+	 * @return count of removed rows
+	 */
+	int truncateScreenLines(int count) {
+		screenLine = null;
+		final int rowsBefore = getTotalRows();
+		while (count > 0 && !screenLines.isEmpty()) {
+			final Element span = screenLines.remove(screenLines.size() - 1);
+			final Element line = span.getParentElement();
+			line.removeChild(span);
+			if (line.hasChildNodes()) {
+				openLine = line;
+				setLength(line, span.getPropertyInt(START_PROPERTY));
+			} else {
+				removeLine(line);
+			}
+			count--;
+		}
+		return rowsBefore - getTotalRows();
+	}
+
+	void clear() {
+		buffer.removeAllChildren();
+		if (fragment != null) {
+			fragment.removeAllChildren();
+		}
+		openLine = null;
+		screenLines.clear();
+		screenLine = null;
+		firstSeq = 0;
+		endSeq = 0;
+		totalRows = 0;
+	}
+
+	/**
+	 * Remove the oldest lines while there are more rows than allowed.
+	 */
+	void trim(final int maxRows) {
+		// Screen lines are addressed from the end, they are kept
+		final Node firstScreenLine = screenLines.isEmpty() ? null : screenLines.get(0).getParentNode();
+		while (getTotalRows() > maxRows) {
+			final Element first = buffer.getFirstChildElement();
+			if (first == null || first == firstScreenLine) {
+				break;
+			}
+			removeLine(first);
+		}
+	}
+
+	private Element getOpenLine() {
+		if (openLine == null) {
+			openLine = addLine();
+		}
+		return openLine;
+	}
+
+	private Element addLine() {
+		final Element line = Document.get().createDivElement();
+		line.addClassName(LINE_CLASS_NAME);
+		(fragment != null ? fragment : buffer).appendChild(line);
+		if (endSeq - firstSeq == lengths.length) {
+			final int[] newLengths = new int[lengths.length * 2];
+			for (int seq = firstSeq; seq < endSeq; seq++) {
+				newLengths[seq & (newLengths.length - 1)] = lengths[seq & (lengths.length - 1)];
+			}
+			lengths = newLengths;
+		}
+		line.setPropertyInt(SEQ_PROPERTY, endSeq);
+		lengths[endSeq & (lengths.length - 1)] = 0;
+		endSeq++;
+		totalRows++;
+		return line;
+	}
+
+	private void removeLine(final Element line) {
+		final int seq = line.getPropertyInt(SEQ_PROPERTY);
+		totalRows -= getRows(lengths[seq & (lengths.length - 1)]);
+		// Lines are removed from the start or from the end only
+		if (seq == firstSeq) {
+			firstSeq++;
+		} else {
+			endSeq--;
+		}
+		// Line can be in the fragment yet
+		line.getParentNode().removeChild(line);
+		if (line == openLine) {
+			openLine = null;
+		}
+	}
+
+	private Node getLastLine() {
+		if (fragment != null && fragment.hasChildNodes()) {
+			return fragment.getLastChild();
+		}
+		return buffer.getLastChild();
+	}
+
+	/**
+	 * Append part of text as a run, tabs are expanded from the current column.
+	 */
+	private void appendRun(final Element line, final Element parent, final String text, final int start, final int end, final String className) {
+		if (start == end) {
+			return;
+		}
+		final int length = getLength(line);
+		final String run = Tabs.expand(text, start, end, length);
+		Node node = Document.get().createTextNode(run);
+		if (className != null) {
+			final Element span = Document.get().createSpanElement();
+			span.addClassName(className);
+			span.appendChild(node);
+			node = span;
+		}
+		parent.appendChild(node);
+		setLength(line, length + run.length());
+	}
+
+	private int getLength(final Element line) {
+		return lengths[line.getPropertyInt(SEQ_PROPERTY) & (lengths.length - 1)];
+	}
+
+	private void setLength(final Element line, final int length) {
+		final int index = line.getPropertyInt(SEQ_PROPERTY) & (lengths.length - 1);
+		totalRows += getRows(length) - getRows(lengths[index]);
+		lengths[index] = length;
+	}
+
+	private int getRows(final int length) {
+		if (wrapCols <= 0 || length <= wrapCols) {
+			return 1;
+		}
+		return (length + wrapCols - 1) / wrapCols;
+	}
+
+	private static native Node createDocumentFragment()/*-{
+		return $doc.createDocumentFragment();
+	}-*/;
+
+}
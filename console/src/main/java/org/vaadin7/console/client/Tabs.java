@@ -0,0 +1,55 @@
+package org.vaadin7.console.client;
+
+/**
+ * Expansion of tab chars to spaces up to the next tab stop.
+ *
+ * @author indvdum (gotoindvdum[at]gmail[dot]com)
+ * @since 18.10.2026 20:21:08
+ *
+ */
+final class Tabs {
+
+	/**
+	 * Count of columns between tab stops.
+	 */
+	static final int TAB_SIZE = 4;
+
+	private Tabs() {
+	}
+
+	/**
+	 * @param text
+	 *            text
+	 * @param start
+	 *            start index of expanded part, inclusive
+	 * @param end
+	 *            end index of expanded part, exclusive
+	 * @param column
+	 *            column of line where the part starts
+	 * @return part of text with tabs replaced by spaces, the part itself if
+	 *         there are no tabs
+	 */
+	static String expand(final String text, final int start, final int end, final int column) {
+		final int tab = text.indexOf('\t', start);
+		if (tab < 0 || tab >= end) {
+			return start == 0 && end == text.length() ? text : text.substring(start, end);
+		}
+		final StringBuilder result = new StringBuilder(end - start + TAB_SIZE);
+		result.append(text, start, tab);
+		int c = column + tab - start;
+		for (int i = tab; i < end; i++) {
+			final char ch = text.charAt(i);
+			if (ch == '\t') {
+				for (int n = TAB_SIZE - c % TAB_SIZE; n > 0; n--) {
+					result.append(' ');
+					c++;
+				}
+			} else {
+				result.append(ch);
+				c++;
+			}
+		}
+		return result.toString();
+	}
+
+}
@@ -3,12 +3,16 @@ package org.vaadin7.console.client;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.google.gwt.animation.client.AnimationScheduler;
+import com.google.gwt.animation.client.AnimationScheduler.AnimationCallback;
+import com.google.gwt.animation.client.AnimationScheduler.AnimationHandle;
 import com.google.gwt.core.client.GWT;
+import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.core.client.Scheduler.ScheduledCommand;
 import com.google.gwt.dom.client.DivElement;
 import com.google.gwt.dom.client.Document;
 import com.google.gwt.dom.client.Element;
 import com.google.gwt.dom.client.InputElement;
-import com.google.gwt.dom.client.Node;
 import com.google.gwt.dom.client.Style.Display;
 import com.google.gwt.dom.client.Style.Unit;
 import com.google.gwt.dom.client.TableCellElement;
@@ -20,6 +24,8 @@ import com.google.gwt.event.dom.client.ClickHandler;
 import com.google.gwt.event.dom.client.KeyCodes;
 import com.google.gwt.event.dom.client.KeyDownEvent;
 import com.google.gwt.event.dom.client.KeyDownHandler;
+import com.google.gwt.event.dom.client.ScrollEvent;
+import com.google.gwt.event.dom.client.ScrollHandler;
 import com.google.gwt.event.shared.HandlerRegistration;
 import com.google.gwt.user.client.Timer;
 import com.google.gwt.user.client.ui.FocusWidget;
@@ -35,6 +41,7 @@ public class TextConsole extends FocusWidget {
 
 	/* Control characters in http://en.wikipedia.org/wiki/Control_character */
 
+	public static final char CTRL_END_OF_TEXT = 'C';
 	public static final char CTRL_BELL = 'G';
 	public static final char CTRL_BACKSPACE = 'H';
 	public static final char CTRL_TAB = 'I';
@@ -44,7 +51,7 @@ public class TextConsole extends FocusWidget {
 	public static final char CTRL_ESCAPE = '[';
 	public static final char CTRL_DELETE = '?';
 
-	private static final char[] CTRL = { CTRL_BELL, CTRL_BACKSPACE, CTRL_TAB, CTRL_LINE_FEED, CTRL_FORM_FEED, CTRL_CARRIAGE_RETURN, CTRL_ESCAPE, CTRL_DELETE };
+	private static final char[] CTRL = { CTRL_END_OF_TEXT, CTRL_BELL, CTRL_BACKSPACE, CTRL_TAB, CTRL_LINE_FEED, CTRL_FORM_FEED, CTRL_CARRIAGE_RETURN, CTRL_ESCAPE, CTRL_DELETE };
 
 	public static char getControlKey(final int kc) {
 		for (final char c : CTRL) {
@@ -55,7 +62,8 @@ public class TextConsole extends FocusWidget {
 		return 0;
 	}
 
-	private static final String DEFAULT_TABS = "    ";
+	private static final String VIRTUAL_BUFFER_CLASS_NAME = "vb";
+	private static final String NO_WRAP_CLASS_NAME = "nw";
 	private static final int BIG_NUMBER = 100000;
 	private final DivElement term;
 	private TextConsoleConfig config;
@@ -68,13 +76,13 @@ public class TextConsole extends FocusWidget {
 	private int cmdHistoryIndex = -1;
 	private final HandlerRegistration clickHandler;
 	private final HandlerRegistration keyHandler;
+	private final HandlerRegistration scrollHandler;
 	private HandlerRegistration focusHandler;
 	private int fontW = -1;
 	private int fontH = -1;
 	private int scrollbarW = -1;
 	private int rows;
 	private int cols;
-	private String tabs = DEFAULT_TABS;
 	private boolean focused;
 	private int promptRows;
 	private int padding;
@@ -83,6 +91,27 @@ public class TextConsole extends FocusWidget {
 	private int maxBufferSize;
 	private String cleanPs;
 	private int paddingW;
+	private final LineBuffer lineBuffer;
+	private VirtualBuffer virtualBuffer;
+	private boolean isRenderScheduled;
+	private boolean isBufferLimitCheckScheduled;
+	/**
+	 * Output operations waiting for the next animation frame.
+	 */
+	private final StringBuilder queuedOps = new StringBuilder();
+	private final List<String> queuedArgs = new ArrayList<String>();
+	private AnimationHandle frameRequest;
+	/**
+	 * Dictionary of CSS class names used by frames.
+	 */
+	private final List<String> frameClassNames = new ArrayList<String>();
+	private boolean isApplyingFrames;
+	private boolean isScrollToEndQueued;
+	/**
+	 * Scroll top of the terminal from the last scroll event.
+	 */
+	private int scrollTop;
+	private boolean isPromptResizeQueued;
 
 	public TextConsole() {
 
@@ -96,6 +125,7 @@ public class TextConsole extends FocusWidget {
 		buffer = Document.get().createElement("pre");
 		buffer.addClassName("b");
 		term.appendChild(buffer);
+		lineBuffer = new LineBuffer(buffer);
 
 		// Prompt elements
 		promptWrap = Document.get().createDivElement();
@@ -134,6 +164,7 @@ public class TextConsole extends FocusWidget {
 		input.setAttribute("spellcheck", "false");
 
 		config = TextConsoleConfig.newInstance();
+		config.setScrolledToEnd(true);
 
 		setPromtActive(false);
 
@@ -164,7 +195,8 @@ public class TextConsole extends FocusWidget {
 					bell();
 				} else if (event.getNativeEvent().getCtrlKey()) {
 					final char ctrlChar = getControlKey(event.getNativeKeyCode());
-					if (ctrlChar > 0) {
+					// Ctrl-C copies selected text
+					if (ctrlChar > 0 && !(ctrlChar == CTRL_END_OF_TEXT && hasSelection(input))) {
 						event.preventDefault();
 						handleControlChar(ctrlChar);
 					}
@@ -173,6 +205,19 @@ public class TextConsole extends FocusWidget {
 			}
 		}, KeyDownEvent.getType());
 
+		scrollHandler = addDomHandler(new ScrollHandler() {
+
+			public void onScroll(final ScrollEvent event) {
+				// Scroll state is kept from scroll events, so output never
+				// reads layout
+				scrollTop = term.getScrollTop();
+				config.setScrolledToEnd(scrollTop >= term.getScrollHeight() - term.getClientHeight());
+				if (virtualBuffer != null) {
+					virtualBuffer.render(scrollTop, rows);
+				}
+			}
+		}, ScrollEvent.getType());
+
 		updateFontDimensions();
 	}
 
@@ -186,6 +231,9 @@ public class TextConsole extends FocusWidget {
 
 	protected void handleControlChar(final char c) {
 		switch (c) {
+		case TextConsole.CTRL_END_OF_TEXT:
+			cancel();
+			break;
 		case TextConsole.CTRL_BACKSPACE:
 			backspace();
 			break;
@@ -221,6 +269,21 @@ public class TextConsole extends FocusWidget {
 		handler.suggest(getInput());
 	}
 
+	/**
+	 * Cancel the running command.
+	 */
+	protected void cancel() {
+		handler.cancel();
+	}
+
+	private static native boolean hasSelection(Element input)/*-{
+		if (input.selectionStart != input.selectionEnd) {
+			return true;
+		}
+		var selection = $wnd.getSelection ? $wnd.getSelection() : null;
+		return selection != null && selection.toString().length > 0;
+	}-*/;
+
 	protected void handleCommandHistoryBrowse(final int i) {
 		cmdHistoryIndex = i == KeyCodes.KEY_UP ? cmdHistoryIndex - 1 : cmdHistoryIndex + 1;
 		if (cmdHistoryIndex >= 0 && cmdHistoryIndex < cmdHistory.size()) {
@@ -258,6 +321,7 @@ public class TextConsole extends FocusWidget {
 	}
 
 	protected void carriageReturn() {
+		flushFrames();
 		if (config.isPrintPromptOnInput()) {
 			setPromtActive(false);
 			// Append newline first if not there yet
@@ -290,7 +354,10 @@ public class TextConsole extends FocusWidget {
 	}
 
 	private boolean bufferIsEmpty() {
-		return !buffer.hasChildNodes();
+		if (virtualBuffer != null) {
+			return virtualBuffer.isEmpty();
+		}
+		return lineBuffer.isEmpty();
 	}
 
 	private void setPromtActive(final boolean active) {
@@ -367,20 +434,10 @@ public class TextConsole extends FocusWidget {
 	}
 
 	private boolean bufferEndsWithNewLine() {
-		Node last = buffer != null ? buffer.getLastChild() : null;
-		while (last != null && last.getLastChild() != null)
-			last = last.getLastChild();
-		// GWT.log("last node: " + (last != null ? last.getNodeName() :
-		// "<null>"));
-		return last != null && "br".equals(last.getNodeName().toLowerCase());
-	}
-
-	private Node createTextNode(final String text) {
-		return Document.get().createTextNode(text);
-	}
-
-	private Node createBr() {
-		return Document.get().createBRElement();
+		if (virtualBuffer != null) {
+			return virtualBuffer.endsWithNewLine();
+		}
+		return lineBuffer.endsWithNewLine();
 	}
 
 	public void focusPrompt() {
@@ -439,29 +496,31 @@ public class TextConsole extends FocusWidget {
 
 	public void newLine() {
 		// GWT.log("newline");
-		beforeChangeTerminal();
-		buffer.appendChild(createBr());
+		if (virtualBuffer != null) {
+			virtualBuffer.newLine();
+			reducePrompt(1);
+			scheduleRender();
+			return;
+		}
+		reducePrompt(lineBuffer.newLine());
 		checkBufferLimit();
-		reducePrompt(1);
 	}
 
 	public void newLineIfNotEndsWithNewLine() {
 		if (!bufferIsEmpty() && !bufferEndsWithNewLine()) {
-			// GWT.log("newline");
-			beforeChangeTerminal();
-			buffer.appendChild(createBr());
-			checkBufferLimit();
-			reducePrompt(1);
+			newLine();
 		}
 	}
 
 	protected void setPs(final String string) {
+		flushFrames();
 		cleanPs = Util.escapeHTML(string);
 		cleanPs = cleanPs.replaceAll(" ", "&nbsp;");
 		ps.setInnerHTML(cleanPs);
 	}
 
 	public void prompt(final String inputText) {
+		flushFrames();
 		setPromtActive(true);
 		scrollToEnd();
 		ps.setInnerHTML(cleanPs);
@@ -469,27 +528,32 @@ public class TextConsole extends FocusWidget {
 	}
 
 	public void focusInput() {
+		flushFrames();
 		if (isFocused())
 			setPromtActive(true);
 		scrollToEnd();
 		ps.setInnerHTML(cleanPs);
 	}
 
-	private boolean isCheckedScrollState = false;
-
+	/**
+	 * Scroll to the end in the next animation frame, so scroll position is
+	 * written once per frame.
+	 */
 	public void scrollToEnd() {
-		if (config.isScrollLock()) {
-			if (config.isScrolledToEnd())
-				term.setScrollTop(BIG_NUMBER);
-		} else
-			term.setScrollTop(BIG_NUMBER);
-		isCheckedScrollState = false;
+		if (config.isScrollLock() && !config.isScrolledToEnd()) {
+			return;
+		}
+		isScrollToEndQueued = true;
+		requestFrame();
 	}
 
-	private void beforeChangeTerminal() {
-		if (!isCheckedScrollState) {
-			config.setScrolledToEnd(term.getScrollTop() >= term.getScrollHeight() - term.getClientHeight());
-			isCheckedScrollState = true;
+	private void scrollTermToEnd() {
+		if (virtualBuffer != null) {
+			// Heights of virtual buffer are updated on render
+			virtualBuffer.scrollToEnd();
+			scheduleRender();
+		} else {
+			term.setScrollTop(BIG_NUMBER);
 		}
 	}
 
@@ -497,164 +561,318 @@ public class TextConsole extends FocusWidget {
 		prompt(null);
 	}
 
-	public void print(String string) {
-		beforeChangeTerminal();
-		if (string == null)
-			string = "";
+	public void print(final String string) {
+		printRuns(new String[] { string }, new String[] { null });
+	}
+
+	public void printWithClass(final String string, final String className) {
+		printRuns(new String[] { string }, new String[] { className });
+	}
+
+	public void append(final String string) {
+		appendRuns(new String[] { string }, new String[] { null });
+	}
+
+	public void appendWithClass(final String string, final String className) {
+		appendRuns(new String[] { string }, new String[] { className });
+	}
+
+	/**
+	 * Print style runs. If the prompt is active, its content is printed before
+	 * them as a finished input line.
+	 * 
+	 * @param texts
+	 *            texts of runs
+	 * @param classNames
+	 *            CSS class names of runs, null for not styled runs
+	 */
+	public void printRuns(String[] texts, String[] classNames) {
 		if (isPromptActive()) {
 			setPromtActive(false);
 			if (!bufferIsEmpty() && !bufferEndsWithNewLine()) {
 				newLine();
 				reducePrompt(-1);
 			}
-			string = getCurrentPromptContent() + string;
+			final String[] promptTexts = new String[texts.length + 1];
+			final String[] promptClassNames = new String[texts.length + 1];
+			promptTexts[0] = getCurrentPromptContent();
+			System.arraycopy(texts, 0, promptTexts, 1, texts.length);
+			System.arraycopy(classNames, 0, promptClassNames, 1, texts.length);
+			texts = promptTexts;
+			classNames = promptClassNames;
 		}
-		final boolean doWrap = config.isWrap();
-		// GWT.log("print original: '" + string + "' (" + doWrap + ")");
-		String str = string.replaceAll("\t", tabs);
+		appendRuns(texts, classNames);
+	}
 
-		// Continue to the last text node if available
-		final Node last = getLastFirstLevelTextNode();
-		int linesAdded = 0;
-		if (last != null) {
-			// GWT.log("print append to old node: '" + last.getNodeValue() +
-			// "'");
-			str = last.getNodeValue() + str;
-			buffer.removeChild(last);
-			linesAdded--;
+	/**
+	 * Append style runs to the last line. All runs are rendered in one pass:
+	 * tabs are expanded from the current column, lines are split by new line
+	 * chars and wrapped.
+	 * 
+	 * @param texts
+	 *            texts of runs
+	 * @param classNames
+	 *            CSS class names of runs, null for not styled runs
+	 */
+	public void appendRuns(final String[] texts, final String[] classNames) {
+		for (int i = 0; i < texts.length; i++) {
+			if (texts[i] == null) {
+				texts[i] = "";
+			}
 		}
+		final int rows;
+		if (virtualBuffer != null) {
+			rows = virtualBuffer.appendRuns(texts, classNames);
+			scheduleRender();
+		} else {
+			updateWrap();
+			rows = lineBuffer.appendRuns(texts, classNames);
+			// make sure we don't exceed the maximum buffer size
+			checkBufferLimit();
+		}
+		reducePrompt(rows);
+	}
 
-		// Split by the newlines anyway
-		int s = 0, e = str.indexOf('\n');
-		while (e >= s) {
-			final String line = str.substring(s, e);
-			linesAdded += appendLine(buffer, line, doWrap ? cols : -1);
-			buffer.appendChild(createBr());
-			s = e + 1;
-			e = str.indexOf('\n', s);
+	/**
+	 * Queue operations of an output frame in the compact form, see
+	 * {@link ConsoleFrame}.
+	 * 
+	 * @param ops
+	 *            operation codes
+	 * @param text
+	 *            texts of all operations
+	 * @param args
+	 *            arguments of operations
+	 * @param classNames
+	 *            CSS class names added to the dictionary
+	 */
+	public void frame(final String ops, final String text, final int[] args, final String[] classNames) {
+		for (final String className : classNames) {
+			frameClassNames.add(className);
 		}
+		final String[] decodedArgs = new String[args.length];
+		int textStart = 0;
+		int arg = 0;
+		for (int i = 0; i < ops.length(); i++) {
+			final char op = ops.charAt(i);
+			final int count = ConsoleFrame.getArgsCount(op);
+			for (int j = 0; j < count; j++, arg++) {
+				switch (ConsoleFrame.getArgType(op, j)) {
+				case ConsoleFrame.TEXT_ARG:
+					decodedArgs[arg] = text.substring(textStart, args[arg]);
+					textStart = args[arg];
+					break;
+				case ConsoleFrame.CLASS_ARG:
+					final int id = args[arg];
+					// Unknown ids are shown without class
+					decodedArgs[arg] = id >= 0 && id < frameClassNames.size() ? frameClassNames.get(id) : null;
+					break;
+				default:
+					decodedArgs[arg] = String.valueOf(args[arg]);
+					break;
+				}
+			}
+		}
+		frame(ops, decodedArgs);
+	}
 
-		// Print the remaining string
-		if (s < str.length()) {
-			linesAdded += appendLine(buffer, str.substring(s), doWrap ? cols : -1);
+	/**
+	 * Queue operations of an output frame. All frames received before the
+	 * next animation frame are applied in one pass, so a burst of output
+	 * causes one layout and one paint.
+	 * 
+	 * @param ops
+	 *            operation codes, see {@link ConsoleFrame}
+	 * @param args
+	 *            arguments of operations
+	 */
+	public void frame(final String ops, final String[] args) {
+		queuedOps.append(ops);
+		for (final String arg : args) {
+			queuedArgs.add(arg);
 		}
+		requestFrame();
+	}
 
-		reducePrompt(linesAdded);
+	/**
+	 * Apply queued output now. Called before operations which must see all
+	 * output received before them.
+	 */
+	public void flushFrames() {
+		applyQueuedFrames();
 	}
 
-	public void printWithClass(String string, String className) {
-		if (className == null) {
-			print(string);
+	private void requestFrame() {
+		if (frameRequest != null) {
 			return;
 		}
-		beforeChangeTerminal();
-		if (string == null)
-			string = "";
-		if (isPromptActive()) {
-			setPromtActive(false);
-			if (!bufferIsEmpty() && !bufferEndsWithNewLine()) {
-				newLine();
-				reducePrompt(-1);
+		frameRequest = AnimationScheduler.get().requestAnimationFrame(new AnimationCallback() {
+
+			public void execute(final double timestamp) {
+				frameRequest = null;
+				applyQueuedFrames();
+				if (isScrollToEndQueued) {
+					isScrollToEndQueued = false;
+					scrollTermToEnd();
+				}
 			}
-			string = getCurrentPromptContent() + string;
-		}
-		final boolean doWrap = config.isWrap();
-		// GWT.log("print original: '" + string + "' (" + doWrap + ")");
-		String str = string.replaceAll("\t", tabs);
-		int linesAdded = 0;
+		});
+	}
 
-		Element classedChild = Document.get().createElement("span");
-		classedChild.addClassName(className);
-		buffer.appendChild(classedChild);
-		// Split by the newlines anyway
-		int s = 0, e = str.indexOf('\n');
-		while (e >= s) {
-			final String line = str.substring(s, e);
-			linesAdded += appendLine(classedChild, line, doWrap ? cols : -1);
-			classedChild.appendChild(createBr());
-			s = e + 1;
-			e = str.indexOf('\n', s);
+	private void applyQueuedFrames() {
+		if (queuedOps.length() == 0) {
+			return;
 		}
-
-		// Print the remaining string
-		if (s < str.length()) {
-			linesAdded += appendLine(classedChild, str.substring(s), doWrap ? cols : -1);
+		final String ops = queuedOps.toString();
+		final String[] args = queuedArgs.toArray(new String[queuedArgs.size()]);
+		queuedOps.setLength(0);
+		queuedArgs.clear();
+		isApplyingFrames = true;
+		lineBuffer.beginBatch();
+		try {
+			applyFrame(ops, args);
+		} finally {
+			lineBuffer.endBatch();
+			isApplyingFrames = false;
+		}
+		if (isPromptResizeQueued) {
+			isPromptResizeQueued = false;
+			setPromptHeight(promptRows);
 		}
-
-		reducePrompt(linesAdded);
 	}
 
-	public void append(String string) {
-		// GWT.log("append = " + string);
-		beforeChangeTerminal();
-		if (string == null)
-			string = "";
-		final boolean doWrap = config.isWrap();
-		// GWT.log("print original: '" + string + "' (" + doWrap + ")");
-		String str = string.replaceAll("\t", tabs);
-
-		// Continue to the last text node if available
-		final Node last = getLastFirstLevelTextNode();
-		int linesAdded = 0;
-		if (last != null) {
-			// GWT.log("print append to old node: '" + last.getNodeValue() +
-			// "'");
-			str = last.getNodeValue() + str;
-			buffer.removeChild(last);
-			linesAdded--;
+	private void applyFrame(final String ops, final String[] args) {
+		int arg = 0;
+		for (int i = 0; i < ops.length(); i++) {
+			final char op = ops.charAt(i);
+			switch (op) {
+			case ConsoleFrame.PRINT:
+			case ConsoleFrame.PRINT_WITH_CLASS:
+			case ConsoleFrame.APPEND:
+			case ConsoleFrame.APPEND_WITH_CLASS:
+				// Following appends are rendered together with this run
+				int end = i + 1;
+				while (end < ops.length() && (ops.charAt(end) == ConsoleFrame.APPEND || ops.charAt(end) == ConsoleFrame.APPEND_WITH_CLASS)) {
+					end++;
+				}
+				final String[] texts = new String[end - i];
+				final String[] classNames = new String[end - i];
+				for (int j = 0; j < texts.length; j++) {
+					final int argsCount = ConsoleFrame.getArgsCount(ops.charAt(i + j));
+					texts[j] = args[arg];
+					classNames[j] = argsCount > 1 ? args[arg + 1] : null;
+					arg += argsCount;
+				}
+				if (op == ConsoleFrame.PRINT || op == ConsoleFrame.PRINT_WITH_CLASS) {
+					printRuns(texts, classNames);
+				} else {
+					appendRuns(texts, classNames);
+				}
+				i = end - 1;
+				continue;
+			case ConsoleFrame.NEW_LINE:
+				newLine();
+				break;
+			case ConsoleFrame.NEW_LINE_IF_NOT_ENDS_WITH_NEW_LINE:
+				newLineIfNotEndsWithNewLine();
+				break;
+			case ConsoleFrame.FORM_FEED:
+				formFeed();
+				break;
+			case ConsoleFrame.CLEAR_BUFFER:
+				clearBuffer();
+				break;
+			case ConsoleFrame.SCROLL_TO_END:
+				scrollToEnd();
+				break;
+			case ConsoleFrame.SCREEN_LINE:
+				startScreenLine();
+				break;
+			case ConsoleFrame.UPDATE_SCREEN_LINE:
+				updateScreenLine(Integer.parseInt(args[arg]));
+				break;
+			case ConsoleFrame.RUN:
+				appendToScreenLine(args[arg], null);
+				break;
+			case ConsoleFrame.RUN_WITH_CLASS:
+				appendToScreenLine(args[arg], args[arg + 1]);
+				break;
+			case ConsoleFrame.SCREEN_LINE_BREAK:
+				endScreenLine();
+				break;
+			case ConsoleFrame.TRUNCATE_SCREEN_LINES:
+				truncateScreenLines(Integer.parseInt(args[arg]));
+				break;
+			default:
+				break;
+			}
+			arg += ConsoleFrame.getArgsCount(op);
 		}
+	}
 
-		// Split by the newlines anyway
-		int s = 0, e = str.indexOf('\n');
-		while (e >= s) {
-			final String line = str.substring(s, e);
-			linesAdded += appendLine(buffer, line, doWrap ? cols : -1);
-			buffer.appendChild(createBr());
-			s = e + 1;
-			e = str.indexOf('\n', s);
+	/**
+	 * Start a new screen line at the end of buffer. Screen lines are lines
+	 * which can be changed by the server later.
+	 */
+	protected void startScreenLine() {
+		if (virtualBuffer != null) {
+			reducePrompt(virtualBuffer.startScreenLine());
+			scheduleRender();
+			return;
 		}
+		reducePrompt(lineBuffer.startScreenLine());
+		checkBufferLimit();
+	}
 
-		// Print the remaining string
-		if (s < str.length()) {
-			linesAdded += appendLine(buffer, str.substring(s), doWrap ? cols : -1);
+	/**
+	 * Start replacing content of a screen line.
+	 * 
+	 * @param position
+	 *            position of line counting from the last screen line, which is
+	 *            1
+	 */
+	protected void updateScreenLine(final int position) {
+		if (virtualBuffer != null) {
+			reducePrompt(virtualBuffer.updateScreenLine(position));
+			scheduleRender();
+			return;
 		}
-
-		reducePrompt(linesAdded);
+		reducePrompt(lineBuffer.updateScreenLine(position));
 	}
 
-	public void appendWithClass(String string, String className) {
-		if (className == null) {
-			append(string);
+	protected void appendToScreenLine(final String string, final String className) {
+		if (virtualBuffer != null) {
+			reducePrompt(virtualBuffer.appendToScreenLine(string, className));
+			scheduleRender();
 			return;
 		}
-		// GWT.log("append = " + string + " classname = " + className);
-		beforeChangeTerminal();
-		if (string == null)
-			string = "";
-		final boolean doWrap = config.isWrap();
-		// GWT.log("print original: '" + string + "' (" + doWrap + ")");
-		String str = string.replaceAll("\t", tabs);
-		int linesAdded = 0;
+		updateWrap();
+		reducePrompt(lineBuffer.appendToScreenLine(string, className));
+		checkBufferLimit();
+	}
 
-		Element classedChild = Document.get().createElement("span");
-		classedChild.addClassName(className);
-		buffer.appendChild(classedChild);
-		// Split by the newlines anyway
-		int s = 0, e = str.indexOf('\n');
-		while (e >= s) {
-			final String line = str.substring(s, e);
-			linesAdded += appendLine(classedChild, line, doWrap ? cols : -1);
-			classedChild.appendChild(createBr());
-			s = e + 1;
-			e = str.indexOf('\n', s);
+	protected void endScreenLine() {
+		if (virtualBuffer != null) {
+			virtualBuffer.endScreenLine();
+		} else {
+			lineBuffer.endScreenLine();
 		}
+		reducePrompt(1);
+	}
 
-		// Print the remaining string
-		if (s < str.length()) {
-			linesAdded += appendLine(classedChild, str.substring(s), doWrap ? cols : -1);
+	/**
+	 * Remove screen lines from the end of buffer.
+	 * 
+	 * @param count
+	 *            count of lines
+	 */
+	protected void truncateScreenLines(int count) {
+		if (virtualBuffer != null) {
+			reducePrompt(-virtualBuffer.truncateScreenLines(count));
+			scheduleRender();
+			return;
 		}
-
-		reducePrompt(linesAdded);
+		reducePrompt(-lineBuffer.truncateScreenLines(count));
 	}
 
 	private String getCurrentPromptContent() {
@@ -674,65 +892,53 @@ public class TextConsole extends FocusWidget {
 		final int min = 1;
 		final int max = getRows();
 		promptRows = rows < min ? min : (rows > max ? max : rows);
-		final int newHeight = fontH * rows;
+		if (isApplyingFrames) {
+			// Prompt is resized once after all queued operations
+			isPromptResizeQueued = true;
+			return;
+		}
+		final int newHeight = fontH * promptRows;
 		// GWT.log("Prompt height=" + newHeight);
 		promptWrap.getStyle().setHeight(newHeight, Unit.PX);
 	}
 
 	/**
-	 * Split long text based on length.
-	 * 
-	 * @param parent
-	 * @param doWrap
-	 * @param str
-	 * @return
+	 * Buffer is trimmed once after all current changes.
 	 */
-	private int appendLine(final Node parent, String str, final int maxLine) {
-		int linesAdded = 0;
-		final boolean doWrap = maxLine > 0;
-		if (!doWrap) {
-			parent.appendChild(createTextNode(str));
-			// GWT.log("append: '" + str + "'");
-			linesAdded++;
-		} else {
-			while (str.length() > maxLine) {
-				final String piece = str.substring(0, maxLine);
-				parent.appendChild(createTextNode(piece));
-				parent.appendChild(createBr());
-				linesAdded++;
-				// GWT.log("append: '" + piece + "'");
-				str = str.substring(maxLine);
-			}
-			parent.appendChild(createTextNode(str));
-			// GWT.log("append rest: '" + str + "'");
-			linesAdded++;
+	private void checkBufferLimit() {
+		if (virtualBuffer != null) {
+			scheduleRender();
+			return;
 		}
+		if (isBufferLimitCheckScheduled) {
+			return;
+		}
+		isBufferLimitCheckScheduled = true;
+		Scheduler.get().scheduleFinally(new ScheduledCommand() {
 
-		// make sore we don't exceed the maximum buffer size
-		checkBufferLimit();
-
-		return linesAdded;
+			public void execute() {
+				isBufferLimitCheckScheduled = false;
+				trimBuffer();
+			}
+		});
 	}
 
-	private void checkBufferLimit() {
-
-		// Buffer means only offscreen lines
-		final int maxb = maxBufferSize + (rows - promptRows);
-		while (getBufferSize() > maxb && buffer.hasChildNodes()) {
-			buffer.removeChild(buffer.getFirstChild());
-		}
-
+	/**
+	 * @return max count of rows in buffer, buffer means only offscreen lines
+	 */
+	private int getMaxBufferRows() {
+		return maxBufferSize + (rows - promptRows);
 	}
 
-	private Node getLastFirstLevelTextNode() {
-		if (buffer == null) {
-			return null;
-		}
-		final Node l = buffer.getLastChild();
-		if (l != null && l.getNodeType() == Node.TEXT_NODE) {
-			return l;
+	/**
+	 * Remove the oldest lines of buffer. Rows are counted by lines and line
+	 * breaks, so no layout is needed.
+	 */
+	private void trimBuffer() {
+		if (virtualBuffer != null) {
+			return;
 		}
-		return null;
+		lineBuffer.trim(getMaxBufferRows());
 	}
 
 	public void println(final String string) {
@@ -789,6 +995,7 @@ public class TextConsole extends FocusWidget {
 //		 + ";scrollbar=" + scrollbarW + ";cols=" + cols + ";rows="
 //		 + rows + ";size=" + getWidth() + "x" + getHeight());
 		if (oldCols != cols) {
+			rewrap();
 			handler.colsChanged(cols);
 		}
 	}
@@ -798,6 +1005,7 @@ public class TextConsole extends FocusWidget {
 		super.setWidth((w + scrollbarW) + "px");
 		buffer.getStyle().setWidth(w, Unit.PX);
 		prompt.getStyle().setWidth(w, Unit.PX);
+		rewrap();
 
 //		 GWT.log("calculateWidthFromCols: font=" + fontW + "x" + fontH
 //		 + ";scrollbar=" + scrollbarW + ";cols=" + cols + ";rows="
@@ -864,7 +1072,7 @@ public class TextConsole extends FocusWidget {
 	}
 
 	public void reset() {
-		beforeChangeTerminal();
+		flushFrames();
 		setPromtActive(false);
 		clearBuffer();
 		setPromptHeight(getRows());
@@ -873,7 +1081,10 @@ public class TextConsole extends FocusWidget {
 	}
 
 	public int getBufferSize() {
-		return (buffer.getClientHeight() / fontH);
+		if (virtualBuffer != null) {
+			return virtualBuffer.getTotalRows();
+		}
+		return lineBuffer.getTotalRows();
 	}
 
 	public int getMaxBufferSize() {
@@ -886,10 +1097,12 @@ public class TextConsole extends FocusWidget {
 	}
 
 	public void clearBuffer() {
-		// Remove all children.
-		while (buffer.hasChildNodes()) {
-			buffer.removeChild(buffer.getFirstChild());
+		if (virtualBuffer != null) {
+			virtualBuffer.clear();
+			scheduleRender();
+			return;
 		}
+		lineBuffer.clear();
 	}
 
 	public void formFeed() {
@@ -902,6 +1115,93 @@ public class TextConsole extends FocusWidget {
 		checkBufferLimit();
 	}
 
+	/**
+	 * In virtual scrolling mode only visible lines are rendered, so the
+	 * buffer can hold much more lines. Buffer is cleared when mode is
+	 * changed.
+	 * 
+	 * @param isVirtualScrolling
+	 *            true to enable virtual scrolling
+	 */
+	public void setVirtualScrolling(final boolean isVirtualScrolling) {
+		flushFrames();
+		if (isVirtualScrolling == (virtualBuffer != null)) {
+			return;
+		}
+		clearBuffer();
+		if (isVirtualScrolling) {
+			virtualBuffer = new VirtualBuffer(buffer);
+			buffer.addClassName(VIRTUAL_BUFFER_CLASS_NAME);
+			scheduleRender();
+		} else {
+			virtualBuffer.detach();
+			virtualBuffer = null;
+			buffer.removeClassName(VIRTUAL_BUFFER_CLASS_NAME);
+		}
+	}
+
+	public boolean isVirtualScrolling() {
+		return virtualBuffer != null;
+	}
+
+	/**
+	 * Render virtual buffer once after all current changes.
+	 */
+	private void scheduleRender() {
+		if (isRenderScheduled) {
+			return;
+		}
+		isRenderScheduled = true;
+		Scheduler.get().scheduleFinally(new ScheduledCommand() {
+
+			public void execute() {
+				isRenderScheduled = false;
+				render();
+			}
+		});
+	}
+
+	/**
+	 * Lines are wrapped by CSS at the width of buffer, buffers only count
+	 * their rows for the current cols.
+	 */
+	private void updateWrap() {
+		final boolean doWrap = config.isWrap();
+		if (doWrap) {
+			buffer.removeClassName(NO_WRAP_CLASS_NAME);
+		} else {
+			buffer.addClassName(NO_WRAP_CLASS_NAME);
+		}
+		lineBuffer.setWrapCols(doWrap ? cols : -1);
+	}
+
+	/**
+	 * Count rows of logical lines again after a resize. Neither layout nor a
+	 * new render of the whole buffer is needed.
+	 */
+	private void rewrap() {
+		if (virtualBuffer != null) {
+			scheduleRender();
+			return;
+		}
+		updateWrap();
+		checkBufferLimit();
+	}
+
+	private void render() {
+		if (virtualBuffer == null) {
+			return;
+		}
+		updateWrap();
+		virtualBuffer.setGeometry(fontH, config.isWrap() ? cols : -1);
+		virtualBuffer.trim(getMaxBufferRows());
+		final boolean doScrollToEnd = virtualBuffer.isScrollToEndPending();
+		virtualBuffer.render(scrollTop, rows);
+		if (doScrollToEnd) {
+			term.setScrollTop(BIG_NUMBER);
+		}
+	}
+
 	protected void clearCommandHistory() {
 		cmdHistory = new ArrayList<String>();
 		cmdHistoryIndex = -1;
@@ -950,6 +1250,9 @@ public class TextConsole extends FocusWidget {
 		if (keyHandler != null) {
 			keyHandler.removeHandler();
 		}
+		if (scrollHandler != null) {
+			scrollHandler.removeHandler();
+		}
 	}
 
 	@Override
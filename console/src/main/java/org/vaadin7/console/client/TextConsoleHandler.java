@@ -6,6 +6,8 @@ public interface TextConsoleHandler {
 
 	public void suggest(String input);
 
+	public void cancel();
+
 	public void colsChanged(int cols);
 
 	public void rowsChanged(int rows);
@@ -0,0 +1,479 @@
+package org.vaadin7.console.client;
+
+import com.google.gwt.dom.client.Document;
+import com.google.gwt.dom.client.Element;
+import com.google.gwt.dom.client.Style.Unit;
+import com.vaadin.client.Util;
+
+/**
+ * Buffer of {@link TextConsole} in virtual scrolling mode. Lines are kept as
+ * HTML strings, only lines in the viewport plus some overscan are rendered as
+ * DOM elements, the height of lines above and below them is kept by spacer
+ * elements, so the scroll bar stays correct.
+ *
+ * All line heights are known without layout: a line takes one row or, if
+ * wrapping is enabled, one row per each started cols chars.
+ *
+ * Lines are kept in a ring, each line keeps its first row counted from a base
+ * which moves when the oldest lines are dropped, so trimming a full buffer
+ * costs only the dropped lines.
+ *
+ * @author indvdum (gotoindvdum[at]gmail[dot]com)
+ * @since 18.10.2026 18:36:50
+ *
+ */
+class VirtualBuffer {
+
+	/**
+	 * Count of rows rendered above and below the viewport.
+	 */
+	private static final int OVERSCAN = 20;
+	private static final String LINE_CLASS_NAME = "vl";
+	private static final int REBASE_ROW = 1 << 30;
+
+	/**
+	 * Logical line of output.
+	 */
+	private static class Line {
+
+		/**
+		 * Part of line before the screen line, it is not changed by screen
+		 * line updates.
+		 */
+		String fixedHtml = "";
+		int fixedLength;
+		String html = "";
+		int length;
+		int rows = 1;
+		/**
+		 * First row of line, counted together with {@link #baseRow}.
+		 */
+		int start;
+		boolean isTerminated;
+
+	}
+
+	private final Element buffer;
+	private final Element top;
+	private final Element rowsElement;
+	private final Element bottom;
+	/**
+	 * Lines in order of output, index of line is counted from {@link #first}
+	 * modulo capacity.
+	 */
+	private Line[] lines = new Line[64];
+	private int first;
+	private int count;
+	/**
+	 * Start of the first line, rows of dropped lines are not subtracted from
+	 * starts of other lines.
+	 */
+	private int baseRow;
+	/**
+	 * Count of lines from the first one with valid start.
+	 */
+	private int prefixValid;
+	private int totalRows;
+	private int rowHeight = 1;
+	private int wrapCols = -1;
+	private int screenLineCount;
+	private Line screenLine;
+	/**
+	 * Position of screen line from the end, 1 for the last line.
+	 */
+	private int screenLinePosition;
+	private int renderedFrom = -1;
+	private int renderedTo = -1;
+	private boolean isChanged;
+	private boolean isScrollToEndPending;
+
+	VirtualBuffer(final Element buffer) {
+		this.buffer = buffer;
+		top = Document.get().createDivElement();
+		rowsElement = Document.get().createDivElement();
+		bottom = Document.get().createDivElement();
+		buffer.appendChild(top);
+		buffer.appendChild(rowsElement);
+		buffer.appendChild(bottom);
+	}
+
+	/**
+	 * Remove elements of virtual buffer from the buffer element.
+	 */
+	void detach() {
+		buffer.removeChild(top);
+		buffer.removeChild(rowsElement);
+		buffer.removeChild(bottom);
+	}
+
+	/**
+	 * @param rowHeight
+	 *            height of row in pixels
+	 * @param wrapCols
+	 *            count of chars in row if lines are wrapped, -1 otherwise
+	 */
+	void setGeometry(final int rowHeight, final int wrapCols) {
+		if (rowHeight == this.rowHeight && wrapCols == this.wrapCols) {
+			return;
+		}
+		this.rowHeight = rowHeight > 0 ? rowHeight : 1;
+		this.wrapCols = wrapCols;
+		totalRows = 0;
+		for (int i = 0; i < count; i++) {
+			final Line line = get(i);
+			line.rows = getRows(line);
+			totalRows += line.rows;
+		}
+		prefixValid = 0;
+		isChanged = true;
+	}
+
+	boolean isEmpty() {
+		return count == 0;
+	}
+
+	boolean endsWithNewLine() {
+		return count > 0 && get(count - 1).isTerminated;
+	}
+
+	int getTotalRows() {
+		return totalRows;
+	}
+
+	/**
+	 * Append style runs to the last line, new line chars terminate lines.
+	 *
+	 * @param texts
+	 *            texts of runs
+	 * @param classNames
+	 *            CSS class names of runs, null for not styled runs
+	 * @return count of added rows
+	 */
+	int appendRuns(final String[] texts, final String[] classNames) {
+		screenLineCount = 0;
+		screenLine = null;
+		final int rowsBefore = totalRows;
+		for (int i = 0; i < texts.length; i++) {
+			final String text = texts[i];
+			int s = 0, e = text.indexOf('\n');
+			while (e >= 0) {
+				appendToLine(getOpenLine(), text, s, e, classNames[i]);
+				newLine();
+				s = e + 1;
+				e = text.indexOf('\n', s);
+			}
+			if (s < text.length()) {
+				appendToLine(getOpenLine(), text, s, text.length(), classNames[i]);
+			}
+		}
+		return totalRows - rowsBefore;
+	}
+
+	/**
+	 * @return count of added rows
+	 */
+	int newLine() {
+		screenLineCount = 0;
+		screenLine = null;
+		if (count > 0 && !get(count - 1).isTerminated) {
+			get(count - 1).isTerminated = true;
+			return 0;
+		}
+		final Line line = new Line();
+		line.isTerminated = true;
+		addLine(line);
+		return 1;
+	}
+
+	/**
+	 * @return count of added rows
+	 */
+	int startScreenLine() {
+		final int rowsBefore = totalRows;
+		if (count > 0 && !get(count - 1).isTerminated) {
+			screenLine = get(count - 1);
+			screenLine.fixedHtml = screenLine.html;
+			screenLine.fixedLength = screenLine.length;
+		} else {
+			screenLine = new Line();
+			addLine(screenLine);
+		}
+		screenLinePosition = 1;
+		screenLineCount++;
+		return totalRows - rowsBefore;
+	}
+
+	/**
+	 * @return count of added rows, negative if rows are removed
+	 */
+	int updateScreenLine(final int position) {
+		screenLine = null;
+		if (position < 1 || position > screenLineCount || position > count) {
+			return 0;
+		}
+		final int index = count - position;
+		screenLine = get(index);
+		screenLinePosition = position;
+		screenLine.html = screenLine.fixedHtml;
+		screenLine.length = screenLine.fixedLength;
+		screenLine.isTerminated = false;
+		return updateRows(index);
+	}
+
+	/**
+	 * @return count of added rows
+	 */
+	int appendToScreenLine(final String text, final String className) {
+		if (screenLine == null) {
+			return 0;
+		}
+		final int rowsBefore = totalRows;
+		appendToLine(count - screenLinePosition, text, 0, text.length(), className);
+		return totalRows - rowsBefore;
+	}
+
+	void endScreenLine() {
+		if (screenLine != null) {
+			screenLine.isTerminated = true;
+			screenLine = null;
+		}
+	}
+
+	/**
+	 * @return count of removed rows
+	 */
+	int truncateScreenLines(int lineCount) {
+		screenLine = null;
+		final int rowsBefore = totalRows;
+		while (lineCount > 0 && screenLineCount > 0 && count > 0) {
+			final int index = (first + count - 1) & (lines.length - 1);
+			totalRows -= lines[index].rows;
+			lines[index] = null;
+			count--;
+			screenLineCount--;
+			lineCount--;
+		}
+		invalidate(count);
+		return rowsBefore - totalRows;
+	}
+
+	void clear() {
+		for (int i = 0; i < count; i++) {
+			lines[(first + i) & (lines.length - 1)] = null;
+		}
+		first = 0;
+		count = 0;
+		baseRow = 0;
+		totalRows = 0;
+		screenLineCount = 0;
+		screenLine = null;
+		invalidate(0);
+	}
+
+	/**
+	 * Remove the oldest lines in one pass while there are more rows than
+	 * allowed.
+	 */
+	void trim(final int maxRows) {
+		int removed = 0;
+		int rows = totalRows;
+		// Screen lines are addressed from the end, they are kept
+		while (rows > maxRows && removed < count - screenLineCount) {
+			final int index = (first + removed) & (lines.length - 1);
+			rows -= lines[index].rows;
+			lines[index] = null;
+			removed++;
+		}
+		if (removed == 0) {
+			return;
+		}
+		first = (first + removed) & (lines.length - 1);
+		count -= removed;
+		baseRow += totalRows - rows;
+		totalRows = rows;
+		prefixValid = prefixValid > removed ? prefixValid - removed : 0;
+		if (baseRow > REBASE_ROW) {
+			// Starts are counted from zero again before they overflow
+			baseRow = 0;
+			prefixValid = 0;
+		}
+		isChanged = true;
+	}
+
+	/**
+	 * Scroll to the end on the next render, when heights are updated.
+	 */
+	void scrollToEnd() {
+		isScrollToEndPending = true;
+		isChanged = true;
+	}
+
+	/**
+	 * @return true if render must set scroll top to the end
+	 */
+	boolean isScrollToEndPending() {
+		return isScrollToEndPending;
+	}
+
+	/**
+	 * Render lines visible at scroll position if they are not rendered yet or
+	 * lines were changed.
+	 *
+	 * @param scrollTop
+	 *            scroll top of the terminal
+	 * @param viewportRows
+	 *            count of visible rows
+	 */
+	void render(final int scrollTop, final int viewportRows) {
+		final int firstRow = isScrollToEndPending ? Math.max(0, totalRows - viewportRows) : scrollTop / rowHeight;
+		isScrollToEndPending = false;
+		if (count == 0) {
+			if (isChanged) {
+				rowsElement.setInnerHTML("");
+				top.getStyle().setHeight(0, Unit.PX);
+				bottom.getStyle().setHeight(0, Unit.PX);
+				renderedFrom = renderedTo = -1;
+				isChanged = false;
+			}
+			return;
+		}
+		ensurePrefix();
+		final int from = getLineAtRow(firstRow - OVERSCAN);
+		final int to = getLineAtRow(firstRow + viewportRows + OVERSCAN);
+		if (!isChanged && renderedFrom <= getLineAtRow(firstRow) && getLineAtRow(firstRow + viewportRows) <= renderedTo) {
+			// Visible lines are rendered already
+			return;
+		}
+		final StringBuilder html = new StringBuilder();
+		for (int i = from; i <= to; i++) {
+			final Line line = get(i);
+			html.append("<div class=\"").append(LINE_CLASS_NAME).append("\">");
+			// Empty line must still take a row
+			html.append(line.length > 0 ? line.html : " ");
+			html.append("</div>");
+		}
+		rowsElement.setInnerHTML(html.toString());
+		top.getStyle().setHeight(getRow(from) * rowHeight, Unit.PX);
+		bottom.getStyle().setHeight((totalRows - getRow(to) - get(to).rows) * rowHeight, Unit.PX);
+		renderedFrom = from;
+		renderedTo = to;
+		isChanged = false;
+	}
+
+	private Line get(final int index) {
+		return lines[(first + index) & (lines.length - 1)];
+	}
+
+	/**
+	 * @return index of the last line, a new line is added if the last one is
+	 *         terminated
+	 */
+	private int getOpenLine() {
+		if (count == 0 || get(count - 1).isTerminated) {
+			addLine(new Line());
+		}
+		return count - 1;
+	}
+
+	private void addLine(final Line line) {
+		if (count == lines.length) {
+			final Line[] newLines = new Line[lines.length * 2];
+			for (int i = 0; i < count; i++) {
+				newLines[i] = get(i);
+			}
+			lines = newLines;
+			first = 0;
+		}
+		line.rows = getRows(line);
+		lines[(first + count) & (lines.length - 1)] = line;
+		count++;
+		totalRows += line.rows;
+		isChanged = true;
+	}
+
+	private void appendToLine(final int index, final String text, final int start, final int end, final String className) {
+		if (start == end) {
+			return;
+		}
+		final Line line = get(index);
+		final String run = Tabs.expand(text, start, end, line.length);
+		final String escaped = Util.escapeHTML(run);
+		if (className == null) {
+			line.html += escaped;
+		} else {
+			line.html += "<span class=\"" + Util.escapeAttribute(className) + "\">" + escaped + "</span>";
+		}
+		line.length += run.length();
+		updateRows(index);
+	}
+
+	/**
+	 * @return change of total rows
+	 */
+	private int updateRows(final int index) {
+		final Line line = get(index);
+		final int rows = getRows(line);
+		final int delta = rows - line.rows;
+		line.rows = rows;
+		totalRows += delta;
+		if (delta != 0) {
+			invalidate(index + 1);
+		}
+		isChanged = true;
+		return delta;
+	}
+
+	private int getRows(final Line line) {
+		if (wrapCols <= 0 || line.length <= wrapCols) {
+			return 1;
+		}
+		return (line.length + wrapCols - 1) / wrapCols;
+	}
+
+	private void invalidate(final int index) {
+		if (prefixValid > index) {
+			prefixValid = index;
+		}
+		isChanged = true;
+	}
+
+	private void ensurePrefix() {
+		if (count == 0) {
+			return;
+		}
+		if (prefixValid == 0) {
+			get(0).start = baseRow;
+			prefixValid = 1;
+		}
+		for (int i = prefixValid; i < count; i++) {
+			final Line previous = get(i - 1);
+			get(i).start = previous.start + previous.rows;
+		}
+		prefixValid = count;
+	}
+
+	/**
+	 * @return count of rows before line, valid after {@link #ensurePrefix()}
+	 */
+	private int getRow(final int index) {
+		return get(index).start - baseRow;
+	}
+
+	/**
+	 * @return index of line containing row, row is clamped to existing rows
+	 */
+	private int getLineAtRow(final int row) {
+		int low = 0;
+		int high = count - 1;
+		while (low < high) {
+			final int middle = (low + high + 1) >>> 1;
+			if (getRow(middle) <= row) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return low;
+	}
+
+}
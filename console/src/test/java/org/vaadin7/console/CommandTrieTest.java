@@ -0,0 +1,35 @@
+package org.vaadin7.console;
+
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class CommandTrieTest {
+
+	private final CommandTrie trie = new CommandTrie();
+
+	@Test
+	public void namesAreFoundByPrefix() {
+		trie.addAll(Arrays.asList("width", "help", "height", "hello", "he"));
+		Assert.assertEquals("[he, height, hello, help]", trie.getNames("he").toString());
+		Assert.assertEquals("[hello, help]", trie.getNames("hel").toString());
+		Assert.assertEquals("[]", trie.getNames("x").toString());
+		Assert.assertEquals(5, trie.getNames("").size());
+	}
+
+	@Test
+	public void namesAreCounted() {
+		trie.add("help");
+		trie.add("help");
+		trie.add("hello");
+		trie.remove("help");
+		Assert.assertEquals("[hello, help]", trie.getNames("h").toString());
+		trie.remove("help");
+		Assert.assertEquals("[hello]", trie.getNames("h").toString());
+		trie.remove("hello");
+		Assert.assertEquals("[]", trie.getNames("").toString());
+	}
+
+}
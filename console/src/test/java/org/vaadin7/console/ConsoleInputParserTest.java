@@ -0,0 +1,34 @@
+package org.vaadin7.console;
+
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class ConsoleInputParserTest {
+
+	private final ConsoleInputParser parser = new ConsoleInputParser();
+
+	private String parse(final String input) {
+		return Arrays.toString(parser.parse(input).toArray());
+	}
+
+	@Test
+	public void argsAreSeparatedByWhitespace() {
+		Assert.assertEquals("[a, b, c]", parse("  a   b\tc "));
+		Assert.assertTrue(parser.endsWithSeparator());
+		Assert.assertEquals(6, parser.getStart(1));
+		Assert.assertEquals("[]", parse(""));
+	}
+
+	@Test
+	public void quotesAndEscapesAreHandled() {
+		Assert.assertEquals("[say, hello  world, , x\"y, C:\\dir]", parse("say \"hello  world\" \"\" x\\\"y C:\\dir"));
+		Assert.assertEquals(-1, parser.getUnclosedQuote());
+		Assert.assertEquals("[a, b c]", parse("a \"b c"));
+		Assert.assertEquals(2, parser.getUnclosedQuote());
+		Assert.assertFalse(parser.endsWithSeparator());
+	}
+
+}
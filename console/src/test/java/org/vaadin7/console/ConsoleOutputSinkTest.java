@@ -0,0 +1,126 @@
+package org.vaadin7.console;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class ConsoleOutputSinkTest {
+
+	/**
+	 * Sink of attached console which is drained only when tasks are run.
+	 */
+	private static class TestSink extends ConsoleOutputSink {
+
+		final List<Runnable> tasks = new ArrayList<Runnable>();
+		boolean isDetached;
+		/**
+		 * Tasks are run under the session lock.
+		 */
+		boolean isLocked;
+
+		TestSink(final Console console) {
+			super(console);
+		}
+
+		@Override
+		protected boolean isDrainedLater() {
+			return !isLocked;
+		}
+
+		@Override
+		protected boolean access(final Runnable task) {
+			if (isDetached) {
+				return false;
+			}
+			tasks.add(task);
+			return true;
+		}
+
+		void runTasks() {
+			isLocked = true;
+			for (final Runnable task : tasks) {
+				task.run();
+			}
+			tasks.clear();
+			isLocked = false;
+		}
+
+	}
+
+	@Test
+	public void middleOfOverflowingOutputIsSkipped() {
+		final Console console = new Console();
+		final TestSink sink = new TestSink(console);
+		sink.setMaxQueuedLines(100);
+		for (int i = 0; i < 1000; i++) {
+			sink.print("line " + i + "\n");
+		}
+		Assert.assertEquals(1, sink.tasks.size());
+		Assert.assertEquals(100, sink.getQueuedLines());
+		sink.runTasks();
+
+		final ConsoleScrollback scrollback = console.getScrollback();
+		Assert.assertEquals(111, scrollback.getLineCount());
+		Assert.assertEquals("line 99", scrollback.getText(99));
+		Assert.assertEquals("... 890 lines skipped ...", scrollback.getText(100));
+		Assert.assertEquals("line 990", scrollback.getText(101));
+		Assert.assertEquals("line 999", scrollback.getText(110));
+		Assert.assertEquals(0, sink.getQueuedLines());
+	}
+
+	@Test
+	public void detachedConsoleIsDrainedByProducer() {
+		final Console console = new Console();
+		final TestSink sink = new TestSink(console);
+		sink.setOverflowPolicy(ConsoleOutputSink.OverflowPolicy.BLOCK);
+		sink.setMaxQueuedLines(1);
+		sink.isDetached = true;
+		sink.print("first\n");
+		sink.print("second\n");
+		Assert.assertTrue(sink.tasks.isEmpty());
+		Assert.assertEquals(0, sink.getQueuedLines());
+		Assert.assertEquals("first", console.getScrollback().getText(0));
+		Assert.assertEquals("second", console.getScrollback().getText(1));
+	}
+
+	@Test
+	public void consoleOutputWithoutSessionLockIsQueued() {
+		final Console console = new Console() {
+
+			private static final long serialVersionUID = 1L;
+
+			private final TestSink sink = new TestSink(this);
+
+			@Override
+			public synchronized ConsoleOutputSink getOutputSink() {
+				return sink;
+			}
+		};
+		final TestSink sink = (TestSink) console.getOutputSink();
+		console.println("first");
+		console.print("second", "term-color-green");
+		Assert.assertEquals(0, console.getScrollback().getLineCount());
+		Assert.assertEquals(1, sink.tasks.size());
+
+		sink.runTasks();
+		Assert.assertEquals("first", console.getScrollback().getText(0));
+		Assert.assertEquals("second", console.getScrollback().getText(1));
+	}
+
+	@Test
+	public void futureIsDoneWhenTextIsPrinted() throws Exception {
+		final Console console = new Console();
+		final TestSink sink = new TestSink(console);
+		sink.setOverflowPolicy(ConsoleOutputSink.OverflowPolicy.BLOCK);
+		final Future<Void> future = sink.printAsync("text", null);
+		Assert.assertFalse(future.isDone());
+		sink.runTasks();
+		Assert.assertTrue(future.isDone());
+		Assert.assertEquals("text", console.getScrollback().getText(0));
+	}
+
+}
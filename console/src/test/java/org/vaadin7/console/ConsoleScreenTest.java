@@ -0,0 +1,91 @@
+package org.vaadin7.console;
+
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.vaadin7.console.ansi.ANSIStreamParser;
+
+public class ConsoleScreenTest {
+
+	private final OutputFrame frame = new OutputFrame();
+	private final ConsoleScreen screen = new ConsoleScreen(frame, new ConsoleScrollback());
+	private final ANSIStreamParser parser = new ANSIStreamParser(null);
+
+	private String flush() {
+		screen.flush();
+		final String result = frame.getOps() + Arrays.toString(frame.getArgs());
+		frame.clear();
+		return result;
+	}
+
+	@Test
+	public void newLinesAreAppended() {
+		parser.parse("one\ntwo", screen);
+		Assert.assertEquals("LrbLr[one, two]", flush());
+		parser.parse(" more\n", screen);
+		Assert.assertEquals("UrbL[1, two more]", flush());
+	}
+
+	@Test
+	public void progressBarIsUpdatedInPlace() {
+		parser.parse("start\n", screen);
+		flush();
+		for (int i = 0; i <= 10000; i++) {
+			parser.parse("\r[" + (i / 100) + "%]\033[K", screen);
+		}
+		Assert.assertEquals("Ur[1, [100%]]", flush());
+		parser.parse("\rdone\033[K", screen);
+		Assert.assertEquals("Ur[1, done]", flush());
+	}
+
+	@Test
+	public void cursorUpChangesOnlyChangedLine() {
+		parser.parse("a 0%\nb 0%\nc 0%\n", screen);
+		flush();
+		parser.parse("\033[2A\r\033[32mb 50%\033[0m\033[K\033[2B", screen);
+		Assert.assertEquals("URb[3, b 50%, term-color-green]", flush());
+	}
+
+	@Test
+	public void hugeCursorMovesAreClamped() {
+		parser.parse("\033[2000000000Gx\033[100000000Gy\033[2000000000C\033[2000000000Cz", screen);
+		parser.parse("\r\033[3Ca", screen);
+		final char[] spaces = new char[ConsoleScreen.MAX_LINE_LENGTH - 5];
+		Arrays.fill(spaces, ' ');
+		Assert.assertEquals("Lr[   a" + new String(spaces) + "z]", flush());
+	}
+
+	@Test
+	public void longTextIsWrapped() {
+		final char[] text = new char[ConsoleScreen.MAX_LINE_LENGTH + 1];
+		Arrays.fill(text, 'x');
+		parser.parse(new String(text), screen);
+		Assert.assertEquals("LrbLr[" + new String(text, 0, ConsoleScreen.MAX_LINE_LENGTH) + ", x]", flush());
+	}
+
+	@Test
+	public void eraseDisplayTruncatesLines() {
+		parser.parse("a\nb\nc", screen);
+		flush();
+		parser.parse("\033[1A\033[1G\033[J", screen);
+		Assert.assertEquals("TU[1, 1]", flush());
+	}
+
+	@Test
+	public void scrolledOutLinesAreWrittenOnce() {
+		for (int i = 0; i < ConsoleScreen.MAX_LINES + 10; i++) {
+			parser.parse(i + "\n", screen);
+		}
+		screen.flush();
+		int lines = 0;
+		for (char op : frame.getOps().toCharArray()) {
+			if (op == 'L') {
+				lines++;
+			}
+		}
+		Assert.assertEquals(ConsoleScreen.MAX_LINES + 11, lines);
+	}
+
+}
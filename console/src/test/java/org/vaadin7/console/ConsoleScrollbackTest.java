@@ -0,0 +1,78 @@
+package org.vaadin7.console;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class ConsoleScrollbackTest {
+
+	@Test
+	public void linesAndRunsAreStored() {
+		final ConsoleScrollback scrollback = new ConsoleScrollback();
+		scrollback.append("plain ", null);
+		scrollback.append("red", "term-color-red");
+		scrollback.append(" more", "term-color-red");
+		scrollback.append("\nnext", null);
+
+		Assert.assertEquals(2, scrollback.getLineCount());
+		Assert.assertEquals("plain red more", scrollback.getText(0));
+		Assert.assertEquals("next", scrollback.getText(1));
+		final List<ConsoleScrollback.Run> runs = scrollback.getRuns(0);
+		Assert.assertEquals(2, runs.size());
+		Assert.assertEquals("plain ", runs.get(0).getText());
+		Assert.assertNull(runs.get(0).getClassName());
+		Assert.assertEquals("red more", runs.get(1).getText());
+		Assert.assertEquals("term-color-red", runs.get(1).getClassName());
+		Assert.assertEquals(1, scrollback.find("ex", 0));
+	}
+
+	@Test
+	public void oldestLinesAreDropped() throws Exception {
+		final ConsoleScrollback scrollback = new ConsoleScrollback(3);
+		for (int i = 0; i < 10; i++) {
+			scrollback.append("line " + i + "\n", null);
+		}
+		Assert.assertEquals(3, scrollback.getLineCount());
+		Assert.assertEquals(7, scrollback.getFirstLineNumber());
+		Assert.assertEquals("line 9", scrollback.getText(9));
+		final StringBuilder sb = new StringBuilder();
+		scrollback.export(sb);
+		Assert.assertEquals("line 7\nline 8\nline 9\n", sb.toString());
+		final long usage = scrollback.getMemoryUsage();
+		scrollback.setMaxLines(1);
+		Assert.assertTrue(scrollback.getMemoryUsage() < usage);
+	}
+
+	@Test
+	public void longLineIsWrapped() {
+		final ConsoleScrollback scrollback = new ConsoleScrollback();
+		final char[] chunk = new char[ConsoleScrollback.MAX_LINE_LENGTH / 2 + 1];
+		Arrays.fill(chunk, 'x');
+		for (int i = 0; i < 4; i++) {
+			scrollback.append(new String(chunk), null);
+		}
+		Assert.assertEquals(3, scrollback.getLineCount());
+		Assert.assertEquals(ConsoleScrollback.MAX_LINE_LENGTH, scrollback.getText(0).length());
+		Assert.assertEquals(ConsoleScrollback.MAX_LINE_LENGTH, scrollback.getText(1).length());
+		Assert.assertEquals(4, scrollback.getText(2).length());
+	}
+
+	@Test
+	public void consoleOutputIsStored() {
+		final Console console = new Console();
+		console.setConvertANSIToCSS(true);
+		console.println("\033[31mred\033[0m text");
+		console.print("10%\r100%");
+		console.newLine();
+
+		final ConsoleScrollback scrollback = console.getScrollback();
+		Assert.assertEquals(2, scrollback.getLineCount());
+		Assert.assertEquals("red text", scrollback.getText(0));
+		Assert.assertEquals("term-color-red", scrollback.getRuns(0).get(0).getClassName());
+		Assert.assertEquals("100%", scrollback.getText(1));
+	}
+
+}
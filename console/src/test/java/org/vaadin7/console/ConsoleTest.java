@@ -1,8 +1,35 @@
 package org.vaadin7.console;
 
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
 import junit.framework.Assert;
+
 import org.junit.Test;
 
+import org.vaadin7.console.client.ConsoleClientRpc;
+import org.vaadin7.console.client.ConsoleServerRpc;
+
+import com.vaadin.server.ClientConnector;
+import com.vaadin.server.ClientMethodInvocation;
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.ui.ConnectorTracker;
+import com.vaadin.ui.UI;
+
 // JUnit tests here
 public class ConsoleTest {
 
@@ -10,4 +37,523 @@ public class ConsoleTest {
 	public void thisAlwaysPasses() {
 		Assert.assertEquals(true, true);
 	}
+
+	@Test
+	public void outputIsSentAsSingleFrame() {
+		final Console console = new Console();
+		console.retrievePendingRpcCalls();
+
+		for (int i = 0; i < 1000; i++) {
+			console.println("line " + i);
+		}
+		console.append("a").append("b").append("c", "x").append("d", "x");
+		console.beforeClientResponse(false);
+
+		final List<ClientMethodInvocation> calls = getClientCalls(console);
+		Assert.assertEquals(1, calls.size());
+		Assert.assertEquals("frame", calls.get(0).getMethodName());
+		final Object[] params = calls.get(0).getParameters();
+		final String ops = (String) params[0];
+		final String text = (String) params[1];
+		final int[] args = (int[]) params[2];
+		Assert.assertEquals(1001, ops.length());
+		Assert.assertEquals("line 999\nab", text.substring(args[998], args[999]));
+		Assert.assertEquals("cd", text.substring(args[999], args[1000]));
+		Assert.assertEquals(0, args[1001]);
+		Assert.assertEquals("[x]", Arrays.toString((String[]) params[3]));
+	}
+
+	@Test
+	public void classNamesAreSentOnce() {
+		final Console console = new Console();
+		console.print("a", "x y");
+		console.print("b", "z");
+		console.beforeClientResponse(false);
+		console.retrievePendingRpcCalls();
+
+		console.print("c", "z");
+		console.print("d", "x y");
+		console.beforeClientResponse(false);
+
+		final Object[] params = getClientCalls(console).get(0).getParameters();
+		Assert.assertEquals("[1, 1, 2, 0]", Arrays.toString((int[]) params[2]));
+		Assert.assertEquals(0, ((String[]) params[3]).length);
+	}
+
+	@Test
+	public void configIsKeptInState() {
+		final Console console = new Console();
+		console.retrievePendingRpcCalls();
+
+		console.setPs("$ ");
+		console.setRows(1000);
+		console.setWrap(false);
+		console.beforeClientResponse(false);
+
+		Assert.assertEquals("$ ", console.getState().ps);
+		Assert.assertEquals(200, console.getState().rows);
+		Assert.assertFalse(console.getState().wrap);
+		Assert.assertTrue(getClientCalls(console).isEmpty());
+	}
+
+	@Test
+	public void unclosedQuoteIsReportedWithoutCommand() {
+		final Console console = new Console(new DefaultConsoleHandler() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public void handleException(final Console console, final Exception e, final Console.Command cmd, final String[] argv) {
+				Assert.fail("Not a command exception: " + e);
+			}
+		});
+
+		console.parseAndExecuteCommand("echo \"a b");
+		console.beforeClientResponse(false);
+		Assert.assertEquals("ERROR: unclosed quote at position 5.", getLastLine(console));
+	}
+
+	@Test
+	public void commonPrefixIgnoresForeignSuggestions() {
+		final Set<String> matches = new LinkedHashSet<String>(Arrays.asList("h", "helpme", "other", "hello"));
+		Assert.assertEquals("hel", Console.getCommonPrefix("he", matches));
+		Assert.assertEquals("he", Console.getCommonPrefix("he", new LinkedHashSet<String>(Arrays.asList("x"))));
+	}
+
+	@SuppressWarnings("deprecation")
+	@Test
+	public void configDelegatesToState() {
+		final Console console = new Console();
+		final Console.Config config = console.getConfig();
+
+		config.setPs("# ");
+		config.setCols(1000);
+		Assert.assertEquals("# ", console.getState().ps);
+		Assert.assertEquals(500, config.getCols());
+	}
+
+	@Test
+	public void reportedViewportIsNotWrittenToState() throws Exception {
+		final Console console = new Console();
+		console.setRows(24);
+		final Field rpcField = Console.class.getDeclaredField("rpc");
+		rpcField.setAccessible(true);
+		final ConsoleServerRpc rpc = (ConsoleServerRpc) rpcField.get(console);
+
+		rpc.viewportChanged(30, 100, "", "");
+		Assert.assertEquals(30, console.getRows());
+		Assert.assertEquals(100, console.getCols());
+		Assert.assertEquals(24, console.getState(false).rows);
+
+		console.setRows(40);
+		Assert.assertEquals(40, console.getRows());
+		Assert.assertEquals(40, console.getState(false).rows);
+	}
+
+	@Test
+	public void outputIsFlushedBeforeOtherCalls() {
+		final Console console = new Console();
+		console.retrievePendingRpcCalls();
+
+		console.print("first");
+		console.bell();
+		console.print("second");
+		console.beforeClientResponse(false);
+
+		final List<ClientMethodInvocation> calls = getClientCalls(console);
+		Assert.assertEquals(3, calls.size());
+		Assert.assertEquals("frame", calls.get(0).getMethodName());
+		Assert.assertEquals("bell", calls.get(1).getMethodName());
+		Assert.assertEquals("frame", calls.get(2).getMethodName());
+	}
+
+	@Test
+	public void printStreamDecodesSplitCharsAndFlushesLines() throws Exception {
+		final Console console = new Console();
+		final PrintStream out = console.getPrintStream();
+		final byte[] bytes = "\u043f\u0440\u0438\u0432\u0435\u0442\n\u2713 done".getBytes("UTF-8");
+		for (final byte b : bytes) {
+			out.write(b);
+		}
+		Assert.assertEquals(1, console.getScrollback().getLineCount());
+		Assert.assertEquals("\u043f\u0440\u0438\u0432\u0435\u0442", console.getScrollback().getText(0));
+
+		out.flush();
+		Assert.assertEquals("\u2713 done", console.getScrollback().getText(1));
+	}
+
+	@Test
+	public void outputSinkAcceptsConcurrentProducers() throws Exception {
+		final Console console = new Console();
+		console.getScrollback().setMaxLines(10000);
+		final ConsoleOutputSink sink = console.getOutputSink();
+		final Thread[] producers = new Thread[4];
+		for (int i = 0; i < producers.length; i++) {
+			final int producer = i;
+			producers[i] = new Thread() {
+
+				@Override
+				public void run() {
+					for (int j = 0; j < 1000; j++) {
+						sink.print(producer + ":" + j + "\n");
+					}
+				}
+			};
+			producers[i].start();
+		}
+		for (final Thread producer : producers) {
+			producer.join();
+		}
+		sink.drain();
+		Assert.assertEquals(4000, console.getScrollback().getLineCount());
+	}
+
+	@Test
+	public void resolvedCommandsAreCached() {
+		final Console console = new Console();
+		final int[] resolveCount = new int[1];
+		final ObjectInspector inspector = new ObjectInspector(new StringBuilder()) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public Console.Command getCommand(final Console console, final String commandName) {
+				resolveCount[0]++;
+				return super.getCommand(console, commandName);
+			}
+		};
+		console.addCommandProvider(inspector);
+
+		final Console.Command length = console.getCommand("length");
+		Assert.assertNotNull(length);
+		Assert.assertSame(length, console.getCommand("length"));
+		Assert.assertEquals(1, resolveCount[0]);
+
+		console.addCommand("other", length);
+		Assert.assertSame(length, console.getCommand("length"));
+		Assert.assertEquals(2, resolveCount[0]);
+	}
+
+	@Test
+	public void dynamicProviderIsListenedAfterChanges() {
+		final Console console = new Console();
+		final TestCommandProvider provider = new TestCommandProvider();
+		provider.commands.put("alpha", new TestCommand());
+		console.addCommandProvider(provider);
+		Assert.assertNotNull(console.getCommand("alpha"));
+
+		provider.commands.put("beta", new TestCommand());
+		provider.fireCommandsChanged();
+		Assert.assertEquals("[alpha, beta]", console.getCommands("").toString());
+		Assert.assertNotNull(console.getCommand("beta"));
+
+		provider.commands.remove("alpha");
+		provider.fireCommandsChanged();
+		Assert.assertEquals("[beta]", console.getCommands("").toString());
+		Assert.assertNull(console.getCommand("alpha"));
+		Assert.assertEquals(1, provider.listeners.size());
+
+		console.removeCommandProvider(provider);
+		Assert.assertTrue(provider.listeners.isEmpty());
+		Assert.assertNull(console.getCommand("beta"));
+	}
+
+	/**
+	 * Listeners are kept in a plain list, so removing one of them while
+	 * they are notified fails.
+	 */
+	private static class TestCommandProvider implements Console.DynamicCommandProvider {
+
+		private static final long serialVersionUID = 1L;
+
+		final Map<String, Console.Command> commands = new HashMap<String, Console.Command>();
+		final List<Console.CommandsChangeListener> listeners = new ArrayList<Console.CommandsChangeListener>();
+
+		@Override
+		public Set<String> getAvailableCommands(final Console console) {
+			return commands.keySet();
+		}
+
+		@Override
+		public Console.Command getCommand(final Console console, final String commandName) {
+			return commands.get(commandName);
+		}
+
+		@Override
+		public void addCommandsChangeListener(final Console.CommandsChangeListener listener) {
+			listeners.add(listener);
+		}
+
+		@Override
+		public void removeCommandsChangeListener(final Console.CommandsChangeListener listener) {
+			listeners.remove(listener);
+		}
+
+		void fireCommandsChanged() {
+			for (final Console.CommandsChangeListener listener : listeners) {
+				listener.commandsChanged(this);
+			}
+		}
+
+	}
+
+	private static class TestCommand implements Console.Command {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public Object execute(final Console console, final String[] argv) throws Exception {
+			return null;
+		}
+
+		@Override
+		public String getUsage(final Console console, final String[] argv) {
+			return null;
+		}
+
+	}
+
+	@Test
+	public void commandsRunOnExecutor() throws Exception {
+		final Console console = new Console();
+		final LockedUI ui = new LockedUI();
+		ui.setContent(console);
+		final CountDownLatch release = new CountDownLatch(1);
+		console.addCommand("wait", new Console.Command() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public Object execute(final Console console, final String[] argv) throws Exception {
+				release.await();
+				return "done";
+			}
+
+			@Override
+			public String getUsage(final Console console, final String[] argv) {
+				return null;
+			}
+		});
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		console.setCommandExecutor(executor);
+		console.retrievePendingRpcCalls();
+
+		ui.lock.lock();
+		try {
+			console.getHandler().inputReceived(console, "wait");
+			console.beforeClientResponse(false);
+			Assert.assertTrue(getClientCalls(console).isEmpty());
+		} finally {
+			ui.lock.unlock();
+		}
+
+		release.countDown();
+		executor.shutdown();
+		Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		ui.lock.lock();
+		try {
+			console.beforeClientResponse(false);
+			final List<ClientMethodInvocation> calls = getClientCalls(console);
+			Assert.assertEquals(2, calls.size());
+			Assert.assertEquals("frame", calls.get(0).getMethodName());
+			Assert.assertEquals("prompt", calls.get(1).getMethodName());
+		} finally {
+			ui.lock.unlock();
+		}
+	}
+
+	@Test
+	public void runningCommandIsCancelled() throws Exception {
+		final Console console = new Console();
+		final LockedUI ui = new LockedUI();
+		ui.setContent(console);
+		final CountDownLatch started = new CountDownLatch(1);
+		console.addCommand("sleep", new Console.CancellableCommand() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public Object execute(final Console console, final String[] argv, final CancellationToken token) throws Exception {
+				started.countDown();
+				while (!token.isCancelled()) {
+					Thread.sleep(10);
+				}
+				return "cancelled";
+			}
+
+			@Override
+			public Object execute(final Console console, final String[] argv) throws Exception {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public long getTimeout() {
+				return 0;
+			}
+
+			@Override
+			public String getUsage(final Console console, final String[] argv) {
+				return null;
+			}
+		});
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		console.setCommandExecutor(executor);
+
+		ui.lock.lock();
+		try {
+			console.getHandler().inputReceived(console, "sleep");
+		} finally {
+			ui.lock.unlock();
+		}
+		Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+		ui.lock.lock();
+		try {
+			console.cancelCommand();
+		} finally {
+			ui.lock.unlock();
+		}
+		executor.shutdown();
+		Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		Assert.assertEquals("Command cancelled", getLastLine(ui, console));
+
+		console.setCommandTimeout(50);
+		final ExecutorService timedExecutor = Executors.newSingleThreadExecutor();
+		console.setCommandExecutor(timedExecutor);
+		ui.lock.lock();
+		try {
+			console.getHandler().inputReceived(console, "sleep");
+		} finally {
+			ui.lock.unlock();
+		}
+		timedExecutor.shutdown();
+		Assert.assertTrue(timedExecutor.awaitTermination(10, TimeUnit.SECONDS));
+		// Watchdog thread prints the result
+		for (int i = 0; i < 1000 && !"Command timed out after 50 ms".equals(getLastLine(ui, console)); i++) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals("Command timed out after 50 ms", getLastLine(ui, console));
+	}
+
+	@Test
+	public void detachedConsoleDropsRunningCommand() throws Exception {
+		final Console console = new Console();
+		final LockedUI ui = new LockedUI();
+		ui.setContent(console);
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch interrupted = new CountDownLatch(1);
+		final AtomicInteger executions = new AtomicInteger();
+		console.addCommand("wait", new Console.Command() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public Object execute(final Console console, final String[] argv) throws Exception {
+				executions.incrementAndGet();
+				started.countDown();
+				try {
+					Thread.sleep(10000);
+				} catch (final InterruptedException e) {
+					interrupted.countDown();
+					throw e;
+				}
+				return "done";
+			}
+
+			@Override
+			public String getUsage(final Console console, final String[] argv) {
+				return null;
+			}
+		});
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		console.setCommandExecutor(executor);
+
+		ui.lock.lock();
+		try {
+			console.getHandler().inputReceived(console, "wait");
+			console.getHandler().inputReceived(console, "wait");
+		} finally {
+			ui.lock.unlock();
+		}
+		Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+		ui.lock.lock();
+		try {
+			console.detach();
+			ui.setContent(null);
+		} finally {
+			ui.lock.unlock();
+		}
+		Assert.assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+		executor.shutdown();
+		Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		Assert.assertEquals(1, executions.get());
+		Assert.assertEquals(0, console.getScrollback().getLineCount());
+	}
+
+	private static String getLastLine(final LockedUI ui, final Console console) {
+		ui.lock.lock();
+		try {
+			return getLastLine(console);
+		} finally {
+			ui.lock.unlock();
+		}
+	}
+
+	private static String getLastLine(final Console console) {
+		return console.getScrollback().getText(console.getScrollback().getEndLineNumber() - 1);
+	}
+
+	/**
+	 * UI without a session, tasks are run under a lock standing in for the
+	 * session lock. Connectors are not registered without a session, so they
+	 * are not unregistered on detach.
+	 */
+	private static class LockedUI extends UI {
+
+		private static final long serialVersionUID = 1L;
+
+		final ReentrantLock lock = new ReentrantLock();
+		private ConnectorTracker connectorTracker;
+
+		@Override
+		public ConnectorTracker getConnectorTracker() {
+			// Called by the constructor of UI
+			if (connectorTracker == null) {
+				connectorTracker = new ConnectorTracker(this) {
+
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					public void unregisterConnector(final ClientConnector connector) {
+					}
+				};
+			}
+			return connectorTracker;
+		}
+
+		@Override
+		protected void init(final VaadinRequest request) {
+		}
+
+		@Override
+		public Future<Void> access(final Runnable runnable) {
+			lock.lock();
+			try {
+				runnable.run();
+			} finally {
+				lock.unlock();
+			}
+			return null;
+		}
+
+	}
+
+	static List<ClientMethodInvocation> getClientCalls(final Console console) {
+		final List<ClientMethodInvocation> calls = new ArrayList<ClientMethodInvocation>();
+		for (final ClientMethodInvocation call : console.retrievePendingRpcCalls()) {
+			if (ConsoleClientRpc.class.getName().equals(call.getInterfaceName())) {
+				calls.add(call);
+			}
+		}
+		return calls;
+	}
 }
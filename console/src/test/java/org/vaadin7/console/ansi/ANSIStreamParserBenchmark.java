@@ -0,0 +1,126 @@
+package org.vaadin7.console.ansi;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * Compares {@link ANSIStreamParser} with the former regex based processing of
+ * Console.appendWithProcessingANSICodes on colored output. Not a unit test,
+ * run it with:
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.vaadin7.console.ansi.ANSIStreamParserBenchmark -Dexec.args="4"
+ * </pre>
+ *
+ * where argument is size of input in megabytes. Former implementation is
+ * quadratic, so it is measured on growing prefixes of input until it takes
+ * longer than a few seconds.
+ *
+ * @author indvdum (gotoindvdum[at]gmail[dot]com)
+ * @since 18.10.2026 14:02:17
+ *
+ */
+public class ANSIStreamParserBenchmark {
+
+	private static final long LEGACY_TIME_LIMIT_MS = 5000;
+
+	private static final String[] SEQUENCES = { "\033[0m", "\033[1;31m", "\033[32m", "\033[1m\033[33m", "\033[34;47m", "\033[0;36m", "\033[22m",
+			"\033[4;35m" };
+
+	public static void main(String[] args) {
+		final int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		final String input = createInput(megabytes * 1024 * 1024);
+		final ANSICodeConverter converter = new DefaultANSICodeConverter();
+
+		// Warm up
+		runParser(input.substring(0, input.length() / 8), converter);
+
+		long start = System.nanoTime();
+		long runs = runParser(input, converter);
+		long parserMs = (System.nanoTime() - start) / 1000000;
+		System.out.println(String.format("ANSIStreamParser: %d chars, %d runs, %d ms, %.1f MB/s", input.length(), runs, parserMs, input.length()
+				/ 1048576.0 / Math.max(parserMs, 1) * 1000));
+
+		for (int length = 16 * 1024; length <= input.length(); length *= 2) {
+			final String part = input.substring(0, length);
+			start = System.nanoTime();
+			runs = runLegacy(part, converter);
+			final long legacyMs = (System.nanoTime() - start) / 1000000;
+			start = System.nanoTime();
+			runParser(part, converter);
+			final long partParserMs = (System.nanoTime() - start) / 1000000;
+			System.out.println(String.format("legacy: %d chars, %d runs, %d ms (parser: %d ms)", length, runs, legacyMs, partParserMs));
+			if (legacyMs > LEGACY_TIME_LIMIT_MS) {
+				break;
+			}
+		}
+	}
+
+	private static String createInput(final int length) {
+		final Random random = new Random(42);
+		final StringBuilder sb = new StringBuilder(length + 128);
+		int line = 0;
+		while (sb.length() < length) {
+			sb.append(SEQUENCES[random.nextInt(SEQUENCES.length)]);
+			sb.append("[INFO] ").append(line++).append(' ');
+			sb.append(SEQUENCES[random.nextInt(SEQUENCES.length)]);
+			sb.append("Compiling module with some colored build output\n");
+		}
+		return sb.toString();
+	}
+
+	private static long runParser(final String input, final ANSICodeConverter converter) {
+		final ANSIStreamParser parser = new ANSIStreamParser(converter);
+		final long[] runs = new long[1];
+		final ANSIStreamParser.Listener listener = new ANSIStreamParser.Listener() {
+
+			@Override
+			public void text(String text, String cssClasses) {
+				runs[0]++;
+			}
+
+			@Override
+			public void control(char c) {
+			}
+
+			@Override
+			public void sequence(char command, int[] params, int count) {
+			}
+		};
+		// Feed by chunks as PrintStream flushes would do
+		for (int i = 0; i < input.length(); i += 8192) {
+			parser.parse(input.substring(i, Math.min(i + 8192, input.length())), listener);
+		}
+		return runs[0];
+	}
+
+	/**
+	 * Former implementation of Console.appendWithProcessingANSICodes.
+	 */
+	private static long runLegacy(final String sOutput, final ANSICodeConverter ansiToCSSconverter) {
+		long runs = 0;
+		String splitted[] = sOutput.split(ANSICodeConverter.ANSI_PATTERN);
+		String notPrintedYet = new String(sOutput);
+		for (int i = 0; i < splitted.length; i++) {
+			String nextStr = splitted[i];
+			if (i == 0 && nextStr.length() == 0)
+				continue;
+			String cssClasses = "";
+			Pattern firstAnsi = Pattern.compile("^(" + ANSICodeConverter.ANSI_PATTERN + ")+\\Q" + nextStr + "\\E.*", Pattern.DOTALL);
+			if (firstAnsi.matcher(notPrintedYet).matches()) {
+				while (firstAnsi.matcher(notPrintedYet).matches()) {
+					String ansi = notPrintedYet.replaceAll("\\Q" + notPrintedYet.replaceAll("^(" + ANSICodeConverter.ANSI_PATTERN + "){1}", "") + "\\E",
+							"");
+					cssClasses += ansiToCSSconverter.convertANSIToCSS(ansi) + " ";
+					notPrintedYet = notPrintedYet.replaceAll("^(" + ANSICodeConverter.ANSI_PATTERN + "){1}", "");
+				}
+				notPrintedYet = notPrintedYet.replaceAll("^\\Q" + nextStr + "\\E", "");
+			} else
+				notPrintedYet = notPrintedYet.replaceFirst("\\Q" + nextStr + "\\E", "");
+			cssClasses = cssClasses.trim();
+			runs++;
+		}
+		return runs;
+	}
+
+}
@@ -0,0 +1,99 @@
+package org.vaadin7.console.ansi;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class ANSIStreamParserTest {
+
+	/**
+	 * Collects runs as "text[classes]".
+	 */
+	private static class Collector implements ANSIStreamParser.Listener {
+
+		private final StringBuilder runs = new StringBuilder();
+
+		@Override
+		public void text(String text, String cssClasses) {
+			runs.append(text).append('[').append(cssClasses).append(']');
+		}
+
+		@Override
+		public void control(char c) {
+			runs.append(c == '\r' ? "<CR>" : "<BS>");
+		}
+
+		@Override
+		public void sequence(char command, int[] params, int count) {
+			runs.append('{');
+			for (int i = 0; i < count; i++) {
+				runs.append(params[i]).append(',');
+			}
+			runs.append(command).append('}');
+		}
+
+		@Override
+		public String toString() {
+			return runs.toString();
+		}
+	}
+
+	@Test
+	public void plainTextIsSingleRun() {
+		final Collector c = new Collector();
+		new ANSIStreamParser(null).parse("plain text", c);
+		Assert.assertEquals("plain text[]", c.toString());
+	}
+
+	@Test
+	public void stylePersistsUntilReset() {
+		final Collector c = new Collector();
+		final ANSIStreamParser parser = new ANSIStreamParser(null);
+		parser.parse("\033[1;31mred", c);
+		parser.parse(" still red\033[0m normal", c);
+		Assert.assertEquals("red[term-font-weight-bolder term-color-red] still red[term-font-weight-bolder term-color-red] normal[]", c.toString());
+	}
+
+	@Test
+	public void sequenceSplitBetweenCalls() {
+		final Collector c = new Collector();
+		final ANSIStreamParser parser = new ANSIStreamParser(null);
+		parser.parse("a\033", c);
+		parser.parse("[3", c);
+		parser.parse("2mb", c);
+		Assert.assertEquals("a[]b[term-color-green]", c.toString());
+	}
+
+	@Test
+	public void attributesAreCancelled() {
+		final Collector c = new Collector();
+		final ANSIStreamParser parser = new ANSIStreamParser(null);
+		parser.parse("\033[1m\033[34mx\033[22my\033[39mz", c);
+		Assert.assertEquals("x[term-font-weight-bolder term-color-blue]y[term-color-blue]z[]", c.toString());
+	}
+
+	@Test
+	public void controlsArePassedToListener() {
+		final Collector c = new Collector();
+		final ANSIStreamParser parser = new ANSIStreamParser(null);
+		parser.parse("10%\r\033[K20%\b\033[2A\033[;5H", c);
+		Assert.assertEquals("10%[]<CR>{-1,K}20%[]<BS>{2,A}{-1,5,H}", c.toString());
+	}
+
+	@Test
+	public void parametersAreSaturated() {
+		final Collector c = new Collector();
+		final ANSIStreamParser parser = new ANSIStreamParser(null);
+		parser.parse("\033[99999999999999999999G", c);
+		Assert.assertEquals("{" + ANSIStreamParser.MAX_PARAM_VALUE + ",G}", c.toString());
+	}
+
+	@Test
+	public void otherSequencesAreSkipped() {
+		final Collector c = new Collector();
+		final ANSIStreamParser parser = new ANSIStreamParser(null);
+		parser.parse("\033]0;title\007a\033[?25lb\033(Bc", c);
+		Assert.assertEquals("a[]b[]c[]", c.toString());
+	}
+
+}
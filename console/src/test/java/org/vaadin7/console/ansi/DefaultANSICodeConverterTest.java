@@ -0,0 +1,39 @@
+package org.vaadin7.console.ansi;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class DefaultANSICodeConverterTest {
+
+	@Test
+	public void convertsNumericCodes() {
+		final DefaultANSICodeConverter converter = new DefaultANSICodeConverter();
+		Assert.assertEquals("term-font-weight-bolder term-color-red", converter.convertANSIToCSS("\033[1;31m"));
+		Assert.assertEquals("term-background-color-blue", converter.convertANSIToCSS("\033[0;44m"));
+		Assert.assertEquals("term-color-green", converter.convertANSIToCSS("\033[a;32m"));
+		Assert.assertEquals("", converter.convertANSIToCSS("\033[m"));
+		Assert.assertEquals("", converter.convertANSIToCSS("not a sequence"));
+	}
+
+	@Test
+	public void convertsExtendedColors() {
+		final DefaultANSICodeConverter converter = new DefaultANSICodeConverter();
+		Assert.assertEquals("term-color-256-196 term-font-weight-bolder", converter.convertANSIToCSS("\033[38;5;196;1m"));
+		Assert.assertEquals("term-background-color-256-232", converter.convertANSIToCSS("\033[48;5;232m"));
+		Assert.assertEquals("term-color-red", converter.convertANSIToCSS("\033[38;5;1m"));
+		Assert.assertEquals("term-background-color-white", converter.convertANSIToCSS("\033[48;5;15m"));
+		Assert.assertEquals("term-color-256-196", converter.convertANSIToCSS("\033[38;2;250;10;5m"));
+		Assert.assertEquals("term-background-color-256-244", converter.convertANSIToCSS("\033[48;2;128;128;130m"));
+		Assert.assertEquals("term-color-256-231", converter.convertANSIToCSS("\033[38;2;255;255;255m"));
+	}
+
+	@Test
+	public void repeatedSequenceReturnsSameInstance() {
+		final DefaultANSICodeConverter converter = new DefaultANSICodeConverter();
+		final String first = converter.convertANSIToCSS("\033[1;31m");
+		Assert.assertSame(first, converter.convertANSIToCSS(new String("\033[1;31m")));
+		Assert.assertSame(first, new DefaultANSICodeConverter().convertANSIToCSS("\033[1;31m"));
+	}
+
+}